@@ -0,0 +1,476 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes messages in the compact binary wire format.
+ *
+ * A binary message starts with a magic byte, which cannot start a text
+ * message, followed by a type byte and the message fields. Integers are
+ * varints (sequence numbers are zigzag-encoded since they can be negative)
+ * and strings are a varint byte length followed by UTF-8 bytes.
+ *
+ * Optional fields come last, and are parsed when present. A field is only
+ * present if all the fields before it are: an absent optional field followed
+ * by a present one is written with its default value. New fields can thus be
+ * appended later on; decoders stop after the last field they know of and
+ * ignore the remaining bytes.
+ *
+ * Unlike the text format, LIST data isn't limited to 255 chars. LIST file
+ * metadata, if any, follows the data: size and modification time as varints
+ * and the digest as length-delimited raw bytes (empty if there's no metadata).
+ * LIST messages carrying changes then have the base sequence number and an
+ * operation byte. SYN messages may end with a base sequence
+ * number. GOSSIP member addresses are length-delimited raw bytes. NACK
+ * ranges are their first part and their length minus one, and NACK messages
+ * also end with the base sequence number if there's one.
+ */
+class BinaryCodec {
+	static final byte MAGIC = (byte) 0xDF;
+
+	private static final byte HELLO = 1;
+	private static final byte SYN = 2;
+	private static final byte LIST = 3;
+	private static final byte DYING = 4;
+	private static final byte TREE = 5;
+	private static final byte GOSSIP = 6;
+	private static final byte NACK = 7;
+
+	/**
+	 * The text codec this binary codec belongs to, used to validate and intern
+	 * IDs.
+	 */
+	private final MessageCodec text;
+
+	public BinaryCodec(MessageCodec text) {
+		this.text = text;
+	}
+
+	/**
+	 * Checks whether the remaining bytes of buf hold a binary message.
+	 */
+	static boolean isBinary(ByteBuffer buf) {
+		return buf.hasRemaining() && buf.get(buf.position()) == MAGIC;
+	}
+
+	/**
+	 * Decodes a message from the remaining bytes of buf. On return, the buffer
+	 * has been consumed.
+	 */
+	public Message decode(ByteBuffer buf) {
+		try {
+			if (buf.get() != MAGIC) {
+				throw new IllegalArgumentException("not a binary message");
+			}
+
+			Message msg;
+			byte type = buf.get();
+			switch (type) {
+			case HELLO:
+				msg = decodeHello(buf);
+				break;
+			case SYN:
+				msg = decodeSyn(buf);
+				break;
+			case LIST:
+				msg = decodeList(buf);
+				break;
+			case DYING:
+				msg = new Message.Dying(id(buf, "sender"));
+				break;
+			case TREE:
+				msg = decodeTree(buf);
+				break;
+			case GOSSIP:
+				msg = decodeGossip(buf);
+				break;
+			case NACK:
+				msg = decodeNack(buf);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown message type: "+type);
+			}
+			// Skip fields appended by later versions
+			buf.position(buf.limit());
+			return msg;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("truncated binary message");
+		}
+	}
+
+	/**
+	 * Checks whether the next optional field is present.
+	 */
+	private static boolean present(ByteBuffer buf) {
+		return buf.hasRemaining();
+	}
+
+	private Message.Hello decodeHello(ByteBuffer buf) {
+		String sender = id(buf, "sender");
+		int seqNum = getSignedVarint(buf);
+		int helloInterval = getVarint(buf);
+		int capabilities = getVarint(buf);
+		int peersLen = getVarint(buf);
+		if (peersLen < 0 || peersLen > 255) {
+			throw new IllegalArgumentException("invalid number of peers: not in range");
+		}
+
+		Message.Hello hello = new Message.Hello(sender, seqNum, helloInterval, capabilities);
+		for (int i = 0; i < peersLen; ++i) {
+			hello.addPeer(id(buf, "peer"));
+		}
+		return hello;
+	}
+
+	private Message.Syn decodeSyn(ByteBuffer buf) {
+		String sender = id(buf, "sender");
+		String peer = id(buf, "peer");
+		int seqNum = getSignedVarint(buf);
+		int baseSeqNum = Message.Syn.NO_BASE;
+		if (present(buf)) {
+			baseSeqNum = getSignedVarint(buf);
+		}
+		return new Message.Syn(sender, peer, seqNum, baseSeqNum);
+	}
+
+	private Message.List decodeList(ByteBuffer buf) {
+		String sender = id(buf, "sender");
+		String peer = id(buf, "peer");
+		int seqNum = getSignedVarint(buf);
+		int totalParts = getVarint(buf);
+		int partNum = getVarint(buf);
+		String data = string(buf, Message.List.MAX_DATA_LENGTH * 4);
+		if (!present(buf)) {
+			return new Message.List(sender, peer, seqNum, totalParts, partNum, data);
+		}
+
+		long size = getVarlong(buf);
+		long mtime = getVarlong(buf);
+		int len = field(buf, Message.List.MAX_DIGEST_LENGTH / 2);
+		String digest = null;
+		if (len > 0) {
+			StringBuilder sb = new StringBuilder(2 * len);
+			for (int i = buf.position() - len; i < buf.position(); ++i) {
+				byte b = buf.get(i);
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			digest = sb.toString();
+		} else {
+			size = Database.Entry.UNKNOWN;
+			mtime = Database.Entry.UNKNOWN;
+		}
+
+		int baseSeqNum = Message.Syn.NO_BASE;
+		char op = Message.List.NONE;
+		if (present(buf)) {
+			baseSeqNum = getSignedVarint(buf);
+			op = (char) buf.get();
+		}
+		return new Message.List(sender, peer, seqNum, totalParts, partNum, data, size, mtime, digest, baseSeqNum, op);
+	}
+
+	private Message.Tree decodeTree(ByteBuffer buf) {
+		String sender = id(buf, "sender");
+		String peer = id(buf, "peer");
+		int seqNum = getSignedVarint(buf);
+		int node = getVarint(buf);
+		int count = getVarint(buf);
+		if (count != 0 && count != Database.FANOUT) {
+			throw new IllegalArgumentException("invalid number of node hashes");
+		}
+
+		long[] hashes = count == 0 ? null : new long[count];
+		for (int i = 0; i < count; ++i) {
+			hashes[i] = buf.getLong();
+		}
+		int depth = Database.MIN_DEPTH;
+		if (present(buf)) {
+			depth = getVarint(buf);
+		}
+		return new Message.Tree(sender, peer, seqNum, depth, node, hashes);
+	}
+
+	private Message.Gossip decodeGossip(ByteBuffer buf) {
+		String sender = id(buf, "sender");
+		int seqNum = getSignedVarint(buf);
+		long incarnation = getVarlong(buf);
+		char kind = (char) buf.get();
+		int nonce = getSignedVarint(buf);
+		int len = field(buf, Message.MAX_ID_LENGTH);
+		String target = len == 0 ? null : text.id(buf, buf.position() - len, buf.position(), "target");
+		int count = getVarint(buf);
+		if (count < 0 || count > Message.Gossip.MAX_MEMBERS) {
+			throw new IllegalArgumentException("invalid number of members");
+		}
+
+		Message.Gossip gossip = new Message.Gossip(sender, seqNum, incarnation, kind, nonce, target);
+		for (int i = 0; i < count; ++i) {
+			String id = id(buf, "member");
+			int addrLen = buf.get();
+			if (addrLen != 4 && addrLen != 16) {
+				throw new IllegalArgumentException("invalid member address length");
+			}
+			byte[] addr = new byte[addrLen];
+			buf.get(addr);
+			InetAddress address;
+			try {
+				address = InetAddress.getByAddress(addr);
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("invalid member address", e);
+			}
+			int memberSeqNum = getSignedVarint(buf);
+			long memberIncarnation = getVarlong(buf);
+			char status = (char) buf.get();
+			gossip.addMember(new Message.Gossip.Member(id, address, memberSeqNum, memberIncarnation, status));
+		}
+		return gossip;
+	}
+
+	private Message.Nack decodeNack(ByteBuffer buf) {
+		String sender = id(buf, "sender");
+		String peer = id(buf, "peer");
+		int seqNum = getSignedVarint(buf);
+		int count = getVarint(buf);
+		if (count < 0 || count > Message.Nack.MAX_RANGES) {
+			throw new IllegalArgumentException("invalid number of ranges");
+		}
+
+		int[] ranges = new int[2 * count];
+		for (int i = 0; i < ranges.length; i += 2) {
+			ranges[i] = getVarint(buf);
+			ranges[i + 1] = ranges[i] + getVarint(buf);
+		}
+		int baseSeqNum = Message.Syn.NO_BASE;
+		if (present(buf)) {
+			baseSeqNum = getSignedVarint(buf);
+		}
+
+		Message.Nack nack = new Message.Nack(sender, peer, seqNum, baseSeqNum);
+		for (int i = 0; i < ranges.length; i += 2) {
+			nack.addRange(ranges[i], ranges[i + 1]);
+		}
+		return nack;
+	}
+
+	/**
+	 * Reads a length-delimited field and returns its bounds.
+	 */
+	private int field(ByteBuffer buf, int maxLen) {
+		int len = getVarint(buf);
+		if (len < 0 || len > maxLen) {
+			throw new IllegalArgumentException("invalid field length: "+len);
+		}
+		if (len > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		buf.position(buf.position() + len);
+		return len;
+	}
+
+	private String id(ByteBuffer buf, String what) {
+		int len = field(buf, Message.MAX_ID_LENGTH);
+		return text.id(buf, buf.position() - len, buf.position(), what);
+	}
+
+	private String string(ByteBuffer buf, int maxLen) {
+		int len = field(buf, maxLen);
+		return text.string(buf, buf.position() - len, buf.position());
+	}
+
+	static int getVarint(ByteBuffer buf) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buf.get();
+			v |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("invalid varint: too long");
+	}
+
+	static long getVarlong(ByteBuffer buf) {
+		long v = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = buf.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("invalid varint: too long");
+	}
+
+	static int getSignedVarint(ByteBuffer buf) {
+		int v = getVarint(buf);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static ByteBuffer putVarint(ByteBuffer buf, int v) {
+		while ((v & ~0x7F) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		return buf.put((byte) v);
+	}
+
+	static ByteBuffer putVarlong(ByteBuffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		return buf.put((byte) v);
+	}
+
+	static ByteBuffer putSignedVarint(ByteBuffer buf, int v) {
+		return putVarint(buf, (v << 1) ^ (v >> 31));
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode s in UTF-8.
+	 */
+	static int utf8Length(String s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				len += 4;
+				++i;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	private void putString(ByteBuffer buf, String s) {
+		putVarint(buf, utf8Length(s));
+		text.putUtf8(buf, s);
+	}
+
+	/**
+	 * Encodes a message at the current position of buf. Throws a
+	 * BufferOverflowException if the message doesn't fit.
+	 */
+	public void encode(Message msg, ByteBuffer buf) {
+		buf.put(MAGIC);
+		if (msg instanceof Message.Hello) {
+			Message.Hello hello = (Message.Hello) msg;
+			buf.put(HELLO);
+			putString(buf, hello.sender);
+			putSignedVarint(buf, hello.seqNum);
+			putVarint(buf, hello.helloInterval);
+			putVarint(buf, hello.capabilities);
+			putVarint(buf, hello.peers().size());
+			for (String peer : hello.peers()) {
+				putString(buf, peer);
+			}
+		} else if (msg instanceof Message.Syn) {
+			Message.Syn syn = (Message.Syn) msg;
+			buf.put(SYN);
+			putString(buf, syn.sender);
+			putString(buf, syn.peer);
+			putSignedVarint(buf, syn.seqNum);
+			if (syn.baseSeqNum != Message.Syn.NO_BASE) {
+				putSignedVarint(buf, syn.baseSeqNum);
+			}
+		} else if (msg instanceof Message.List) {
+			Message.List list = (Message.List) msg;
+			buf.put(LIST);
+			putString(buf, list.sender);
+			putString(buf, list.peer);
+			byte[] encoded = list.encoded == null ? null : list.encoded.binary;
+			if (encoded != null) {
+				buf.put(encoded);
+				return;
+			}
+			int start = buf.position();
+			putSignedVarint(buf, list.seqNum);
+			putVarint(buf, list.totalParts);
+			putVarint(buf, list.partNum);
+			putString(buf, list.data);
+			if (list.digest != null) {
+				putVarlong(buf, list.size);
+				putVarlong(buf, list.mtime);
+				putVarint(buf, list.digest.length() / 2);
+				for (int i = 0; i < list.digest.length(); i += 2) {
+					int hi = Character.digit(list.digest.charAt(i), 16);
+					int lo = Character.digit(list.digest.charAt(i + 1), 16);
+					buf.put((byte) ((hi << 4) | lo));
+				}
+			} else if (list.delta()) {
+				// No metadata, but the change fields follow
+				buf.put((byte) 0).put((byte) 0).put((byte) 0);
+			}
+			if (list.delta()) {
+				putSignedVarint(buf, list.baseSeqNum);
+				buf.put((byte) list.op);
+			}
+			if (list.encoded != null) {
+				list.encoded.binary = MessageCodec.copy(buf, start);
+			}
+		} else if (msg instanceof Message.Dying) {
+			Message.Dying dying = (Message.Dying) msg;
+			buf.put(DYING);
+			putString(buf, dying.sender);
+		} else if (msg instanceof Message.Tree) {
+			Message.Tree tree = (Message.Tree) msg;
+			buf.put(TREE);
+			putString(buf, tree.sender);
+			putString(buf, tree.peer);
+			putSignedVarint(buf, tree.seqNum);
+			putVarint(buf, tree.node);
+			if (tree.request()) {
+				putVarint(buf, 0);
+			} else {
+				putVarint(buf, Database.FANOUT);
+				for (int i = 0; i < Database.FANOUT; ++i) {
+					buf.putLong(tree.hash(i));
+				}
+			}
+			if (tree.depth != Database.MIN_DEPTH) {
+				putVarint(buf, tree.depth);
+			}
+		} else if (msg instanceof Message.Gossip) {
+			Message.Gossip gossip = (Message.Gossip) msg;
+			buf.put(GOSSIP);
+			putString(buf, gossip.sender);
+			putSignedVarint(buf, gossip.seqNum);
+			putVarlong(buf, gossip.incarnation);
+			buf.put((byte) gossip.kind);
+			putSignedVarint(buf, gossip.nonce);
+			putString(buf, gossip.target != null ? gossip.target : "");
+			putVarint(buf, gossip.members().size());
+			for (Message.Gossip.Member m : gossip.members()) {
+				putString(buf, m.id);
+				byte[] addr = m.address.getAddress();
+				buf.put((byte) addr.length).put(addr);
+				putSignedVarint(buf, m.seqNum);
+				putVarlong(buf, m.incarnation);
+				buf.put((byte) m.status);
+			}
+		} else if (msg instanceof Message.Nack) {
+			Message.Nack nack = (Message.Nack) msg;
+			buf.put(NACK);
+			putString(buf, nack.sender);
+			putString(buf, nack.peer);
+			putSignedVarint(buf, nack.seqNum);
+			putVarint(buf, nack.ranges());
+			for (int i = 0; i < nack.ranges(); ++i) {
+				putVarint(buf, nack.first(i));
+				putVarint(buf, nack.last(i) - nack.first(i));
+			}
+			if (nack.baseSeqNum != Message.Syn.NO_BASE) {
+				putSignedVarint(buf, nack.baseSeqNum);
+			}
+		} else {
+			throw new IllegalArgumentException("unknown message: "+msg);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of direct byte buffers of a fixed size. Direct buffers are expensive
+ * to allocate, so they are recycled instead of being left to the GC.
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("invalid buffer size: not positive");
+		}
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns a cleared buffer, either recycled or freshly allocated.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.poll();
+		if (buf == null) {
+			buf = ByteBuffer.allocateDirect(bufferSize);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used afterwards.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf.capacity() != bufferSize || !buf.isDirect()) {
+			throw new IllegalArgumentException("buffer doesn't belong to this pool");
+		}
+		// The size check is racy, but going slightly over the limit is harmless
+		if (free.size() < maxPooled) {
+			free.offer(buf);
+		}
+	}
+}
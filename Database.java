@@ -1,52 +1,714 @@
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
- * A versioned database containing an array of strings.
+ * A versioned database of file entries.
+ *
+ * The database keeps the change sets of its latest updates, so that peers
+ * holding an older version can be sent only what changed. The history is
+ * bounded both in number of change sets and in number of changed entries.
+ *
+ * Entries are also spread in buckets by path hash, and the hash of a bucket is
+ * the XOR of the hashes of its entries, so that it can be updated
+ * incrementally. The buckets are the leaves of a summary tree with FANOUT
+ * children per node, used to find out which buckets differ between two
+ * versions of the database without sending it (see Reconciler). The tree gets
+ * deeper as the database grows, so that buckets stay small.
+ *
+ * Peer databases can hold hundreds of thousands of entries, so the contents
+ * aren't kept as Entry objects: paths are sorted and front-coded in a PathList,
+ * the other fields are stored in arrays, and entries are only built when
+ * they're read.
+ *
+ * Each version of the database is an immutable Version, published through a
+ * volatile reference: readers get a consistent view of the sequence number,
+ * entries and bucket hashes without locking. Updates are serialized and
+ * publish a new Version once it's complete.
  */
 class Database {
-	private String[] data;
-	private int seqNum;
+	private static final int MAX_HISTORY = 64;
+	private static final int MAX_HISTORY_ENTRIES = 16384;
+
+	private static final int FANOUT_BITS = 4;
+	static final int FANOUT = 1 << FANOUT_BITS;
+	static final int MIN_DEPTH = 2;
+	static final int MAX_DEPTH = 5;
+	private static final int BUCKET_SIZE = 16; // Entries per bucket to aim for
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * A file entry: its path and, if known, its size, modification time and
+	 * content digest.
+	 */
+	public static class Entry {
+		public static final long UNKNOWN = -1;
+
+		public final String path;
+		public final long size;
+		public final long mtime;
+		public final String digest;
+
+		private long hash = 0;
+
+		/**
+		 * Creates an entry without metadata, e.g. received from a peer which
+		 * doesn't send it.
+		 */
+		public Entry(String path) {
+			this(path, UNKNOWN, UNKNOWN, null);
+		}
+
+		/**
+		 * Creates an entry. mtime is in milliseconds since the epoch and digest
+		 * is a lower-case hex SHA-256.
+		 */
+		public Entry(String path, long size, long mtime, String digest) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+			this.digest = digest;
+		}
+
+		/**
+		 * Checks whether this entry carries metadata. Entries without metadata
+		 * can't be compared and must be assumed to have changed.
+		 */
+		public boolean hasMetadata() {
+			return digest != null;
+		}
+
+		/**
+		 * Checks whether two entries have the same path and content.
+		 * Modification times are ignored, since they change when a file is
+		 * copied to another peer.
+		 */
+		public boolean sameContent(Entry other) {
+			return hasMetadata() && other.hasMetadata() && path.equals(other.path) &&
+				size == other.size && digest.equals(other.digest);
+		}
+
+		/**
+		 * Returns a 64-bit hash of the whole entry. It's never 0, which is the
+		 * hash of an empty bucket.
+		 */
+		public long hash() {
+			if (hash == 0) {
+				long h = fnv(FNV_OFFSET, path);
+				h = (h ^ size) * FNV_PRIME;
+				h = (h ^ mtime) * FNV_PRIME;
+				if (digest != null) {
+					h = fnv(h, digest);
+				}
+				h = mix(h);
+				hash = h == 0 ? 1 : h;
+			}
+			return hash;
+		}
+
+		public int bucket(int depth) {
+			return bucketOf(path, depth);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry other = (Entry) o;
+			return path.equals(other.path) && size == other.size &&
+				mtime == other.mtime && Objects.equals(digest, other.digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, size, mtime, digest);
+		}
+
+		public String toString() {
+			if (!hasMetadata()) {
+				return path;
+			}
+			return path+" ("+size+" bytes, "+digest.substring(0, Math.min(8, digest.length()))+")";
+		}
+	}
+
+	/**
+	 * The changes needed to go from the database version from to the version
+	 * to: entries added or modified, and paths removed.
+	 */
+	public static class Changes {
+		public final int from;
+		public final int to;
+		public final List<Entry> updated;
+		public final List<String> removed;
+
+		public Changes(int from, int to, List<Entry> updated, List<String> removed) {
+			this.from = from;
+			this.to = to;
+			this.updated = Collections.unmodifiableList(updated);
+			this.removed = Collections.unmodifiableList(removed);
+		}
+
+		public int size() {
+			return updated.size() + removed.size();
+		}
+	}
+
+	/**
+	 * The immutable contents of a version of the database, sorted by path.
+	 * Digests are stored as raw bytes, back to back.
+	 */
+	private static class Table extends AbstractList<Entry> {
+		private final PathList paths;
+		private final long[] sizes;
+		private final long[] mtimes;
+		private final byte[] digests;
+		private final int[] digestOffsets;
+
+		public Table(Entry[] entries) {
+			Entry[] sorted = entries.clone();
+			Arrays.sort(sorted, (a, b) -> a.path.compareTo(b.path));
+
+			List<String> p = new ArrayList<>(sorted.length);
+			sizes = new long[sorted.length];
+			mtimes = new long[sorted.length];
+			digestOffsets = new int[sorted.length + 1];
+			int digestBytes = 0;
+			for (int i = 0; i < sorted.length; ++i) {
+				Entry e = sorted[i];
+				p.add(e.path);
+				sizes[i] = e.size;
+				mtimes[i] = e.mtime;
+				digestOffsets[i] = digestBytes;
+				if (e.digest != null) {
+					digestBytes += e.digest.length() / 2;
+				}
+			}
+			digestOffsets[sorted.length] = digestBytes;
+
+			digests = new byte[digestBytes];
+			for (int i = 0; i < sorted.length; ++i) {
+				String d = sorted[i].digest;
+				for (int j = 0; d != null && j < d.length(); j += 2) {
+					int hi = Character.digit(d.charAt(j), 16);
+					int lo = Character.digit(d.charAt(j + 1), 16);
+					digests[digestOffsets[i] + j / 2] = (byte) ((hi << 4) | lo);
+				}
+			}
+			paths = new PathList(p);
+		}
+
+		private Entry entry(int i, String path) {
+			int start = digestOffsets[i];
+			int end = digestOffsets[i + 1];
+			if (start == end) {
+				return new Entry(path, sizes[i], mtimes[i], null);
+			}
+			StringBuilder sb = new StringBuilder(2 * (end - start));
+			for (int j = start; j < end; ++j) {
+				sb.append(Character.forDigit((digests[j] >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(digests[j] & 0xF, 16));
+			}
+			return new Entry(path, sizes[i], mtimes[i], sb.toString());
+		}
+
+		@Override
+		public Entry get(int i) {
+			return entry(i, paths.get(i));
+		}
+
+		@Override
+		public Iterator<Entry> iterator() {
+			Iterator<String> it = paths.iterator();
+			return new Iterator<Entry>() {
+				private int i = 0;
+
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				public Entry next() {
+					return entry(i++, it.next());
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return sizes.length;
+		}
+	}
+
+	/**
+	 * The summary tree of a version at some depth: the bucket hashes, the
+	 * hashes of the internal nodes, and the entries of each bucket, as indices
+	 * in the table grouped by bucket.
+	 */
+	private static class Summary {
+		public final int depth;
+		public final long[] buckets;
+		public final long[] nodes;
+		// Set by index(): bucket b is order[starts[b]] to order[starts[b + 1] - 1]
+		private int[] starts;
+		private int[] order;
+
+		public Summary(int depth, long[] buckets) {
+			this.depth = depth;
+			this.buckets = buckets;
+
+			int first = firstNode(depth);
+			nodes = new long[first];
+			for (int n = first - 1; n >= 0; --n) {
+				int child = n * FANOUT + 1;
+				nodes[n] = child >= first ? combine(buckets, child - first) : combine(nodes, child);
+			}
+		}
+
+		/**
+		 * Indexes the entries by bucket, if it isn't done already.
+		 */
+		public synchronized void index(Table table) {
+			if (order != null) {
+				return;
+			}
+			int[] bucket = new int[table.size()];
+			int[] s = new int[buckets.length + 1];
+			int i = 0;
+			for (String path : table.paths) {
+				bucket[i] = bucketOf(path, depth);
+				++s[bucket[i] + 1];
+				++i;
+			}
+			for (int b = 0; b < buckets.length; ++b) {
+				s[b + 1] += s[b];
+			}
+			int[] o = new int[bucket.length];
+			int[] next = Arrays.copyOf(s, buckets.length);
+			for (i = 0; i < bucket.length; ++i) {
+				o[next[bucket[i]]++] = i;
+			}
+			starts = s;
+			order = o;
+		}
+	}
+
+	/**
+	 * An immutable version of the database: its sequence number, entries and
+	 * bucket hashes, at the depth of the summary tree suited to its size.
+	 */
+	public static class Version {
+		public final int seqNum;
+		public final int depth;
+		private final Table table;
+		private final long[] buckets;
+
+		// The summary tree at the depth last asked for, computed when needed
+		private volatile Summary summary;
+
+		private Version(int seqNum, Table table, int depth, long[] buckets) {
+			this.seqNum = seqNum;
+			this.table = table;
+			this.depth = depth;
+			this.buckets = buckets;
+		}
+
+		/**
+		 * Returns the paths as a sorted, read-only list.
+		 */
+		public List<String> data() {
+			return table.paths;
+		}
+
+		/**
+		 * Returns the entries as a read-only list sorted by path. Entries are
+		 * built as they're read, so iterating is cheaper than random access.
+		 */
+		public List<Entry> entries() {
+			return table;
+		}
+
+		/**
+		 * Returns the summary tree at a depth, which may differ from the
+		 * version's when comparing it with another version.
+		 */
+		private Summary summaryAt(int depth) {
+			Summary s = summary;
+			if (s != null && s.depth == depth) {
+				return s;
+			}
+
+			long[] b;
+			if (depth == this.depth) {
+				b = buckets;
+			} else if (depth < this.depth) {
+				// Buckets at a lower depth are made of whole buckets at ours
+				int shift = FANOUT_BITS * (this.depth - depth);
+				b = new long[buckets(depth)];
+				for (int i = 0; i < buckets.length; ++i) {
+					b[i >>> shift] ^= buckets[i];
+				}
+			} else {
+				b = hashes(table, depth);
+			}
+			s = new Summary(depth, b);
+			summary = s;
+			return s;
+		}
+
+		/**
+		 * Returns the hashes of the children of a node of the summary tree at
+		 * a depth, or null if there's no such internal node. Node 0 is the
+		 * root, and the children of the nodes just above the leaves are the
+		 * buckets (see firstNode).
+		 */
+		public long[] summary(int node, int depth) {
+			if (depth < MIN_DEPTH || depth > MAX_DEPTH || node < 0 || node >= firstNode(depth)) {
+				return null;
+			}
+
+			Summary s = summaryAt(depth);
+			int first = s.nodes.length;
+			long[] hashes = new long[FANOUT];
+			for (int i = 0; i < FANOUT; ++i) {
+				int child = node * FANOUT + 1 + i;
+				hashes[i] = child >= first ? s.buckets[child - first] : s.nodes[child];
+			}
+			return hashes;
+		}
+
+		/**
+		 * Returns the entries of a bucket of the summary tree at a depth.
+		 */
+		public List<Entry> bucket(int bucket, int depth) {
+			if (depth < MIN_DEPTH || depth > MAX_DEPTH || bucket < 0 || bucket >= buckets(depth)) {
+				return Collections.emptyList();
+			}
+
+			Summary s = summaryAt(depth);
+			s.index(table);
+			List<Entry> list = new ArrayList<>();
+			for (int i = s.starts[bucket]; i < s.starts[bucket + 1]; ++i) {
+				list.add(table.get(s.order[i]));
+			}
+			return list;
+		}
+	}
+
+	private volatile Version current;
+
+	// Only used by updates, under the lock
+	private final ArrayDeque<Changes> history = new ArrayDeque<>();
+	private int historyEntries = 0;
 
 	/**
 	 * Create a synchronized, populated database.
 	 */
-	public Database(String[] data, int seqNum) {
-		this.data = data;
-		this.seqNum = seqNum;
+	public Database(Entry[] entries, int seqNum) {
+		int depth = depthFor(entries.length);
+		this.current = new Version(seqNum, new Table(entries), depth, hashes(Arrays.asList(entries), depth));
+	}
+
+	private static long fnv(long h, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Finalizes a hash so that all of its bits depend on all input bits.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Returns the number of buckets of a summary tree of the given depth.
+	 */
+	static int buckets(int depth) {
+		return 1 << (FANOUT_BITS * depth);
+	}
+
+	/**
+	 * Returns the first node at the given depth of a summary tree. Nodes are
+	 * numbered breadth-first from the root, 0: the children of node n are
+	 * nodes n * FANOUT + 1 to n * FANOUT + FANOUT.
+	 */
+	static int firstNode(int depth) {
+		return (buckets(depth) - 1) / (FANOUT - 1);
+	}
+
+	/**
+	 * Returns the depth of the summary tree of a database with count entries.
+	 */
+	static int depthFor(int count) {
+		int depth = MIN_DEPTH;
+		while (depth < MAX_DEPTH && (long) buckets(depth) * BUCKET_SIZE < count) {
+			++depth;
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the bucket of a path in a summary tree of the given depth. It's
+	 * taken from the top bits of the path hash, so the bucket of a path at
+	 * some depth contains its buckets at greater depths.
+	 */
+	static int bucketOf(String path, int depth) {
+		return (int) (mix(fnv(FNV_OFFSET, path)) >>> (64 - FANOUT_BITS * depth));
+	}
+
+	/**
+	 * Computes the bucket hashes of entries.
+	 */
+	private static long[] hashes(Iterable<Entry> entries, int depth) {
+		long[] buckets = new long[buckets(depth)];
+		for (Entry e : entries) {
+			buckets[e.bucket(depth)] ^= e.hash();
+		}
+		return buckets;
+	}
+
+	/**
+	 * Returns the hash of a tree node from the hashes of its children.
+	 */
+	static long combine(long[] children, int offset) {
+		long h = FNV_OFFSET;
+		for (int i = offset; i < offset + FANOUT; ++i) {
+			h = mix((h ^ children[i]) * FNV_PRIME);
+		}
+		return h;
+	}
+
+	/**
+	 * Replaces the entry old (which may be null) with e (which may be null)
+	 * in the bucket hashes.
+	 */
+	private static void rehash(long[] buckets, int depth, Entry old, Entry e) {
+		if (old != null) {
+			buckets[old.bucket(depth)] ^= old.hash();
+		}
+		if (e != null) {
+			buckets[e.bucket(depth)] ^= e.hash();
+		}
+	}
+
+	/**
+	 * Creates entries without metadata from a list of paths.
+	 */
+	public static Entry[] entries(String[] paths) {
+		Entry[] entries = new Entry[paths.length];
+		for (int i = 0; i < paths.length; ++i) {
+			entries[i] = new Entry(paths[i]);
+		}
+		return entries;
+	}
+
+	/**
+	 * Computes the changes between the entries of a version and new ones, and
+	 * updates the bucket hashes accordingly.
+	 */
+	private static Changes diff(Version v, long[] buckets, Entry[] newEntries, int newSeqNum) {
+		int depth = v.depth;
+		Map<String, Entry> old = new HashMap<>();
+		for (Entry e : v.table) {
+			old.put(e.path, e);
+		}
+
+		List<Entry> updated = new ArrayList<>();
+		for (Entry e : newEntries) {
+			Entry prev = old.remove(e.path);
+			if (!e.equals(prev)) {
+				updated.add(e);
+				rehash(buckets, depth, prev, e);
+			}
+		}
+		for (Entry prev : old.values()) {
+			rehash(buckets, depth, prev, null);
+		}
+		return new Changes(v.seqNum, newSeqNum, updated, new ArrayList<>(old.keySet()));
+	}
+
+	/**
+	 * Appends a change set to the history, evicting the oldest ones if it's
+	 * full.
+	 */
+	private void record(Changes changes) {
+		history.addLast(changes);
+		historyEntries += changes.size();
+		while (!history.isEmpty() && (history.size() > MAX_HISTORY || historyEntries > MAX_HISTORY_ENTRIES)) {
+			historyEntries -= history.removeFirst().size();
+		}
 	}
 
 	/**
 	 * Updates the database. A database can only be updated with strictly
 	 * increasing sequence numbers.
 	 */
-	public synchronized void update(String[] data, int seqNum) {
-		if (this.seqNum >= seqNum) {
-			throw new RuntimeException("attempt to update a Database with an older sequence number ("+seqNum+" < "+this.seqNum+")");
+	public synchronized void update(Entry[] entries, int seqNum) {
+		Version v = current;
+		if (v.seqNum >= seqNum) {
+			throw new RuntimeException("attempt to update a Database with an older sequence number ("+seqNum+" < "+v.seqNum+")");
 		}
 
-		this.data = data;
-		this.seqNum = seqNum;
+		long[] buckets = v.buckets.clone();
+		record(diff(v, buckets, entries, seqNum));
+		int depth = depthFor(entries.length);
+		if (depth != v.depth) {
+			buckets = hashes(Arrays.asList(entries), depth);
+		}
+		current = new Version(seqNum, new Table(entries), depth, buckets);
 	}
 
 	/**
 	 * Updates the database. The database's sequence number is automatically
 	 * incremented.
 	 */
-	public synchronized void update(String[] data) {
-		this.data = data;
-		this.seqNum++;
+	public synchronized void update(Entry[] entries) {
+		update(entries, current.seqNum + 1);
+	}
+
+	/**
+	 * Applies changes to the database. The changes must start from the
+	 * current version of the database.
+	 */
+	public synchronized void apply(Changes changes) {
+		Version v = current;
+		if (changes.from != v.seqNum) {
+			throw new RuntimeException("attempt to apply changes from "+changes.from+" to a Database at "+v.seqNum);
+		}
+		if (changes.to <= v.seqNum) {
+			throw new RuntimeException("attempt to update a Database with an older sequence number ("+changes.to+" < "+v.seqNum+")");
+		}
+
+		long[] buckets = v.buckets.clone();
+		Map<String, Entry> merged = new HashMap<>();
+		for (Entry e : v.table) {
+			merged.put(e.path, e);
+		}
+		for (String path : changes.removed) {
+			rehash(buckets, v.depth, merged.remove(path), null);
+		}
+		for (Entry e : changes.updated) {
+			rehash(buckets, v.depth, merged.put(e.path, e), e);
+		}
+
+		record(changes);
+		int depth = depthFor(merged.size());
+		if (depth != v.depth) {
+			buckets = hashes(merged.values(), depth);
+		}
+		current = new Version(changes.to, new Table(merged.values().toArray(new Entry[merged.size()])), depth, buckets);
+	}
+
+	/**
+	 * Returns the changes between the version base and the current version,
+	 * or null if the history doesn't go back to base.
+	 */
+	public synchronized Changes changesSince(int base) {
+		if (base >= current.seqNum) {
+			return null;
+		}
+
+		Iterator<Changes> it = history.iterator();
+		Changes c = null;
+		while (it.hasNext()) {
+			c = it.next();
+			if (c.from == base) {
+				break;
+			}
+			c = null;
+		}
+		if (c == null) {
+			return null;
+		}
+
+		// Merge the change sets from base onwards
+		Map<String, Entry> updated = new LinkedHashMap<>();
+		Set<String> removed = new LinkedHashSet<>();
+		int to = base;
+		while (true) {
+			if (c.from != to) {
+				return null; // Gap in the history
+			}
+			for (String path : c.removed) {
+				updated.remove(path);
+				removed.add(path);
+			}
+			for (Entry e : c.updated) {
+				removed.remove(e.path);
+				updated.put(e.path, e);
+			}
+			to = c.to;
+			if (!it.hasNext()) {
+				break;
+			}
+			c = it.next();
+		}
+		return new Changes(base, to, new ArrayList<>(updated.values()), new ArrayList<>(removed));
+	}
+
+	/**
+	 * Returns the current version of the database. Use it to read several
+	 * things which must match, e.g. the sequence number and the entries.
+	 */
+	public Version version() {
+		return current;
+	}
+
+	/**
+	 * Returns the hashes of the children of a summary tree node (see
+	 * Version.summary), or null if the database isn't at version seqNum
+	 * anymore.
+	 */
+	public long[] summary(int node, int depth, int seqNum) {
+		Version v = current;
+		return v.seqNum == seqNum ? v.summary(node, depth) : null;
+	}
+
+	/**
+	 * Returns the entries of a bucket, or null if the database isn't at version
+	 * seqNum anymore.
+	 */
+	public List<Entry> bucket(int bucket, int depth, int seqNum) {
+		Version v = current;
+		return v.seqNum == seqNum ? v.bucket(bucket, depth) : null;
+	}
+
+	/**
+	 * Returns the paths in the current version as a sorted, read-only list.
+	 */
+	public List<String> data() {
+		return current.data();
 	}
 
 	/**
-	 * Returns this database's data as a read-only list.
+	 * Returns the entries of the current version as a read-only list sorted
+	 * by path.
 	 */
-	public synchronized List<String> data() {
-		return Collections.unmodifiableList(Arrays.asList(data));
+	public List<Entry> entries() {
+		return current.entries();
 	}
 
-	public synchronized int seqNum() {
-		return seqNum;
+	public int seqNum() {
+		return current.seqNum;
 	}
 }
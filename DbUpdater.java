@@ -1,13 +1,26 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Maintains a database of all file paths in a given directory. The database is
- * updated periodically.
+ * Maintains a database of all files in a given directory. The database is
+ * either updated periodically with full scans, or incrementally from file
+ * system events (see Watcher). File digests come from a HashCache, so that
+ * only new and modified files are hashed.
  *
  * This class has ownership over the database it holds.
  */
@@ -16,8 +29,17 @@ public class DbUpdater implements Runnable {
 	private int updateInterval;
 
 	private Database db = null;
+	private final DirectoryWalker walker;
+	private final HashCache hashCache;
 
-	public DbUpdater(String sharedFolderPath, int updateInterval) {
+	/**
+	 * Creates a DbUpdater and, if scan is true, scans the directory. Otherwise
+	 * the first scan is left to a Watcher, which walks the directory once to
+	 * both watch it and list its files. If initial isn't null (e.g. restored
+	 * from a snapshot), it's kept as the database, and only updated if the
+	 * directory contents differ.
+	 */
+	public DbUpdater(String sharedFolderPath, int updateInterval, int scanParallelism, Path hashCacheFile, Database initial, boolean scan) {
 		if (sharedFolderPath == null) {
 			throw new InvalidParameterException("invalid argument path is null");
 		}
@@ -31,9 +53,14 @@ public class DbUpdater implements Runnable {
 		}
 
 		this.updateInterval = updateInterval;
+		this.walker = new DirectoryWalker(scanParallelism);
+		this.hashCache = new HashCache(hashCacheFile);
+		this.db = initial;
 
 		// Initial DB update
-		scan();
+		if (scan) {
+			scan();
+		}
 	}
 
 	public Database database() {
@@ -41,61 +68,238 @@ public class DbUpdater implements Runnable {
 	}
 
 	/**
-	 * Traverses `dirPath` and recursively adds all file paths to `paths`.
+	 * Adds the entry of a file to entries. Files which can't be read are
+	 * skipped.
 	 */
-	private Set<String> getListOfPath(Set<String> paths, String dirPath) {
-		File currentDir = new File(dirPath);
-		if (!currentDir.isDirectory()) {
-			throw new IllegalArgumentException("wrong dir path");
+	private void addEntry(Map<String, Database.Entry> entries, Path p, BasicFileAttributes attrs) {
+		String path = sharedFolder.toPath().relativize(p).toString();
+		Database.Entry entry = hashCache.entry(path, p, attrs);
+		if (entry != null) {
+			entries.put(path, entry);
 		}
+	}
 
-		for (File f: currentDir.listFiles()) {
-			if (f.isFile()) {
-				paths.add(sharedFolder.toPath().relativize(f.toPath()).toString());
-			}
-
-			if (f.isDirectory()) {
-				paths.addAll(getListOfPath(new HashSet<String>(), f.getPath())) ;
-			}
-		}
-		return paths;
+	/**
+	 * Traverses the shared folder and returns the entries of all files, by
+	 * path.
+	 */
+	private Map<String, Database.Entry> getEntries() {
+		Map<String, Database.Entry> entries = new ConcurrentHashMap<>();
+		walker.walk(sharedFolder.toPath(), null, (p, attrs) -> addEntry(entries, p, attrs));
+		return entries;
 	}
 
 	/**
-	 * Updates the database with a new list of paths. If the database doesn't
-	 * exist it's created.
+	 * Updates the database with new entries. If the database doesn't exist
+	 * it's created.
 	 */
-	private void update(Set<String> paths) {
-		String[] pathsArray = paths.toArray(new String[paths.size()]);
+	private void update(Map<String, Database.Entry> entries) {
+		Database.Entry[] entriesArray = entries.values().toArray(new Database.Entry[entries.size()]);
 		if (db == null) {
-			db = new Database(pathsArray, 0);
+			db = new Database(entriesArray, 0);
 		} else {
-			db.update(pathsArray);
+			db.update(entriesArray);
 		}
 	}
 
 	/**
 	 * Scans the directory and updates the database if necessary.
 	 */
-	private void scan() {
-		Set<String> paths = getListOfPath(new HashSet<String>(), sharedFolder.getPath());
+	public void scan() {
+		publish(getEntries());
+	}
+
+	/**
+	 * Updates the database if entries differ from its contents.
+	 */
+	private synchronized void publish(Map<String, Database.Entry> entries) {
+		hashCache.save(entries.keySet());
+
 		if (db == null) {
-			update(paths);
+			update(entries);
 			return;
 		}
 
-		List<String> currentDb = db.data();
+		List<Database.Entry> currentDb = db.entries();
 
-		if (currentDb.size() != paths.size()) {
-			update(paths);
+		if (currentDb.size() != entries.size()) {
+			update(entries);
 			return;
 		}
 
-		for (String path : currentDb) {
-			if (!paths.contains(path)) {
-				update(paths);
+		for (Database.Entry entry : currentDb) {
+			if (!entry.equals(entries.get(entry.path))) {
+				update(entries);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Watches the shared directory with a WatchService and applies file
+	 * events to the database. Events are coalesced: the database is only
+	 * updated once no more events have arrived for a short while. A full
+	 * rescan happens when events have been lost (OVERFLOW) and every
+	 * safetyInterval seconds.
+	 *
+	 * The first scan happens when the Watcher is created, so that the
+	 * database is available once it returns.
+	 */
+	public class Watcher implements Runnable {
+		private static final long SETTLE_MILLIS = 200;
+
+		private final int safetyInterval;
+		private final Path root = sharedFolder.toPath();
+		private WatchService watchService;
+		private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+		// Sorted, so that the paths below a directory are contiguous
+		private final ConcurrentSkipListMap<String, Database.Entry> entries = new ConcurrentSkipListMap<>();
+
+		public Watcher(int safetyInterval) {
+			if (safetyInterval <= 0) {
+				throw new InvalidParameterException("invalid argument interval is not positive");
+			}
+			this.safetyInterval = safetyInterval;
+
+			try {
+				watchService = root.getFileSystem().newWatchService();
+			} catch (IOException e) {
+				e.printStackTrace();
+				// Nothing will be watched, but the database must exist
+				scan();
+				return;
+			}
+			rescan();
+			publish(entries);
+		}
+
+		private String relative(Path p) {
+			return root.relativize(p).toString();
+		}
+
+		/**
+		 * Watches a single directory. Can be called from several threads.
+		 */
+		private void watch(Path dir) {
+			try {
+				WatchKey key = dir.register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+				keys.put(key, dir);
+			} catch (IOException e) {
+				System.err.println("Cannot watch "+dir+": "+e.getMessage());
+			}
+		}
+
+		/**
+		 * Watches dir and its subdirectories, and adds the files they contain
+		 * to entries. Directories are watched before being listed, so that no
+		 * file created during the walk is missed.
+		 */
+		private void register(Path dir) {
+			walker.walk(dir, this::watch, (p, attrs) -> addEntry(entries, p, attrs));
+		}
+
+		/**
+		 * Drops all watches and registers the whole tree again.
+		 */
+		private void rescan() {
+			for (WatchKey key : keys.keySet()) {
+				key.cancel();
+			}
+			keys.clear();
+			entries.clear();
+			register(root);
+		}
+
+		/**
+		 * Removes a deleted path. Since it can't be checked anymore, it may
+		 * have been a directory: remove everything below it as well.
+		 */
+		private void remove(Path p) {
+			String rel = relative(p);
+			entries.remove(rel);
+			// Paths starting with rel and a separator sort before rel followed
+			// by the next char
+			entries.subMap(rel + File.separatorChar, rel + (char) (File.separatorChar + 1)).clear();
+		}
+
+		/**
+		 * Applies the events of a key. Returns false if events have been lost.
+		 */
+		private boolean apply(WatchKey key) {
+			Path dir = keys.get(key);
+			boolean ok = true;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					ok = false;
+					continue;
+				}
+				if (dir == null) {
+					continue;
+				}
+
+				Path p = dir.resolve((Path) event.context());
+				if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					remove(p);
+					continue;
+				}
+
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(p, BasicFileAttributes.class);
+				} catch (IOException e) {
+					remove(p); // Removed in the meantime
+					continue;
+				}
+				if (attrs.isDirectory()) {
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						register(p);
+					}
+				} else if (attrs.isRegularFile()) {
+					addEntry(entries, p, attrs);
+				}
+			}
+			if (!key.reset()) {
+				keys.remove(key);
+			}
+			return ok;
+		}
+
+		public void run() {
+			if (watchService == null) {
 				return;
 			}
+
+			try {
+				long nextRescan = System.nanoTime() + TimeUnit.SECONDS.toNanos(safetyInterval);
+				while (true) {
+					long wait = Math.max(0, nextRescan - System.nanoTime());
+					WatchKey key = watchService.poll(wait, TimeUnit.NANOSECONDS);
+
+					boolean ok = true;
+					// Coalesce bursts of events into a single update
+					while (key != null) {
+						ok &= apply(key);
+						key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+					}
+
+					if (!ok || System.nanoTime() >= nextRescan) {
+						rescan();
+						nextRescan = System.nanoTime() + TimeUnit.SECONDS.toNanos(safetyInterval);
+					}
+					publish(entries);
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// Shutting down
+			} finally {
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 
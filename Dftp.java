@@ -1,19 +1,166 @@
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 class Dftp {
 	private static final int port = 4242;
 	private static final int helloInterval = 1;
 	private static final int synInterval = 1;
 	private static final int dirScanInterval = 10;
+	private static final int dirRescanInterval = 600;
+	private static final int snapshotInterval = 30;
+	private static final int scanParallelism = Integer.getInteger("dftp.scanThreads", 2 * Runtime.getRuntime().availableProcessors());
 	private static final int scheduleInterval = 1;
+	private static final int indexInterval = 10;
 	private static final int dyingInterval = 100;
 	private static final int dyingCount = 3;
 	private static final Path sharedDir = Paths.get("shared/");
+	/** Local state, hidden from peers. Peer IDs can't start with a dot. */
+	private static final Path stateDir = sharedDir.resolve(".dftp");
+	private static final int outgoingCapacity = Integer.getInteger("dftp.outgoingCapacity", 256);
+	private static final int maxDatagramSize = Integer.getInteger("dftp.mtu", 1400);
+	/** Memory budget of partially received databases, in MiB. */
+	private static final int listMemory = Integer.getInteger("dftp.listMemory", 128);
+	/** Maximum rate of LIST messages sent to all peers, per second. */
+	private static final int listRate = Integer.getInteger("dftp.listRate", 10000);
+	/** Memory budget of the LIST replies cached to be sent to several peers, in MiB. */
+	private static final int listCache = Integer.getInteger("dftp.listCache", 32);
+
+	/**
+	 * Pack LIST and SYN messages bound for the same peer into a single
+	 * datagram. Enabled with -Ddftp.batch=true.
+	 */
+	private static final boolean batch = Boolean.getBoolean("dftp.batch");
+
+	/**
+	 * Use the binary wire format. Enabled with -Ddftp.binary=true.
+	 */
+	private static final boolean binary = Boolean.getBoolean("dftp.binary");
+
+	/**
+	 * Split datagrams larger than the MTU in fragments. Enabled with
+	 * -Ddftp.fragment=true.
+	 */
+	private static final boolean fragment = Boolean.getBoolean("dftp.fragment");
+
+	/**
+	 * Reconcile peer databases with summary trees when the changes since the
+	 * version we have aren't available anymore. Enabled with -Ddftp.tree=true.
+	 */
+	private static final boolean tree = Boolean.getBoolean("dftp.tree");
+
+	/**
+	 * Send full databases with each path coded against the previous one.
+	 * Enabled with -Ddftp.prefix=true.
+	 */
+	private static final boolean prefix = Boolean.getBoolean("dftp.prefix");
+
+	/**
+	 * Track membership with gossip and a failure detector instead of HELLO
+	 * broadcasts from every peer. Enabled with -Ddftp.gossip=true.
+	 */
+	private static final boolean gossip = Boolean.getBoolean("dftp.gossip");
+
+	/**
+	 * Ask for missing parts of LIST replies with NACK messages instead of
+	 * sending another SYN. Enabled with -Ddftp.nack=true.
+	 */
+	private static final boolean nack = Boolean.getBoolean("dftp.nack");
+
+	/**
+	 * Use a non-blocking DatagramChannel driven by a Selector instead of a
+	 * blocking DatagramSocket. Enabled with -Ddftp.nio=true.
+	 */
+	private static final boolean nio = Boolean.getBoolean("dftp.nio");
+
+	/**
+	 * Update the local database from file system events instead of scanning
+	 * the shared directory periodically. Enabled with -Ddftp.watch=true.
+	 */
+	private static final boolean watch = Boolean.getBoolean("dftp.watch");
+
+	/**
+	 * Print all received messages. Disabled with -Ddftp.debug=false.
+	 */
+	private static final boolean debug = !"false".equals(System.getProperty("dftp.debug"));
+
+	/**
+	 * Run periodic tasks on a shared scheduler and blocking tasks on virtual
+	 * threads, instead of one thread per component. Enabled with
+	 * -Ddftp.runtime=shared.
+	 */
+	private static final boolean sharedRuntime = "shared".equals(System.getProperty("dftp.runtime"));
+	private static final int schedulerThreads = 2;
+	private static final Duration shutdownTimeout = Duration.ofSeconds(1);
+
+	private static TaskRuntime runtime = null;
+
+	/**
+	 * The threads started in thread mode, interrupted when shutting down.
+	 */
+	private static final List<Thread> threads = new ArrayList<>();
+
+	/**
+	 * Starts a long-running task.
+	 */
+	private static void start(Runnable task) {
+		if (runtime != null) {
+			runtime.execute(task);
+		} else {
+			startThread(task);
+		}
+	}
+
+	private static synchronized void startThread(Runnable task) {
+		Thread thread = new Thread(task);
+		threads.add(thread);
+		thread.start();
+	}
+
+	/**
+	 * Interrupts the threads started in thread mode, and waits at most
+	 * timeout for all of them to terminate. Threads blocked in uninterruptible
+	 * I/O, such as accepting connections, are left behind.
+	 */
+	private static synchronized void stopThreads(Duration timeout) {
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		long deadline = System.nanoTime() + timeout.toNanos();
+		try {
+			for (Thread thread : threads) {
+				long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (left <= 0) {
+					break;
+				}
+				thread.join(left);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Starts a periodic task: either its own loop on a dedicated thread, or
+	 * a single iteration every interval seconds on the shared scheduler.
+	 */
+	private static void startPeriodic(Runnable loop, Runnable tick, int interval) {
+		if (runtime != null) {
+			runtime.schedule(tick, interval);
+		} else {
+			startThread(loop);
+		}
+	}
 
 	private static String local() throws UnknownHostException {
 		String local = InetAddress.getLocalHost().getHostName();
@@ -31,55 +178,144 @@ class Dftp {
 		// Ensure the local directory exists
 		new File(localDir.toString()).mkdirs();
 
-		DatagramSocket socket = new DatagramSocket(port);
-		MuxDemux muxDemux = new MuxDemux(socket);
-		PeerTable peerTable = new PeerTable();
+		if (sharedRuntime) {
+			runtime = new TaskRuntime(schedulerThreads);
+		}
 
-		DbUpdater dbUpdater = new DbUpdater(localDir.toString(), dirScanInterval);
+		MuxDemux muxDemux;
+		if (nio) {
+			DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+			channel.bind(new InetSocketAddress(port));
+			muxDemux = new MuxDemux(channel, outgoingCapacity);
+		} else {
+			muxDemux = new MuxDemux(new DatagramSocket(port), outgoingCapacity);
+		}
+		muxDemux.setBatching(batch);
+		muxDemux.setBinary(binary);
+		muxDemux.setFragmentation(fragment);
+		muxDemux.setReconciliation(tree);
+		muxDemux.setPrefixCoding(prefix);
+		muxDemux.setSelectiveRetransmission(nack);
+		muxDemux.setMaxDatagramSize(maxDatagramSize);
+		if (runtime != null) {
+			muxDemux.setSenderExecutor(runtime.detachedExecutor());
+		}
+		// Gossip membership removes dead peers itself
+		PeerTable peerTable = new PeerTable(gossip ? 0 : 10);
+		start(peerTable);
+
+		Snapshot.Contents snapshot = Snapshot.load(stateDir.resolve(local+".snapshot"));
+
+		DbUpdater dbUpdater = new DbUpdater(localDir.toString(), dirScanInterval, scanParallelism,
+			stateDir.resolve(local+".hashes"), snapshot != null ? snapshot.local : null, !watch);
+		if (watch) {
+			// The Watcher scans the directory while registering it
+			start(dbUpdater.new Watcher(dirRescanInterval));
+		} else {
+			startPeriodic(dbUpdater, dbUpdater::scan, dirScanInterval);
+		}
 		Database db = dbUpdater.database();
-		new Thread(dbUpdater).start();
 
 		HelloReceiver helloReceiver = new HelloReceiver(peerTable, local);
-		new Thread(helloReceiver).start();
-		muxDemux.addHandler(helloReceiver);
+		start(helloReceiver);
+		muxDemux.addHandler(Message.Type.HELLO, helloReceiver);
 
-		HelloSender helloSender = new HelloSender(muxDemux, peerTable, db, local, helloInterval);
-		new Thread(helloSender).start();
+		if (gossip) {
+			Membership membership = new Membership(muxDemux, peerTable, db, local, helloInterval);
+			if (runtime != null) {
+				membership.setExecutor(runtime.scheduledExecutor());
+				runtime.schedule(membership::tick, Duration.ofSeconds(helloInterval).dividedBy(3));
+			} else {
+				startThread(membership);
+			}
+			muxDemux.addHandler(Message.Type.HELLO, membership);
+			muxDemux.addHandler(Message.Type.GOSSIP, membership);
+			peerTable.addListener(membership);
+		} else {
+			HelloSender helloSender = new HelloSender(muxDemux, peerTable, db, local, helloInterval);
+			startPeriodic(helloSender, helloSender::tick, helloInterval);
+		}
 
-		ListSender listSender = new ListSender(muxDemux, db, local);
-		new Thread(listSender).start();
+		ListSender listSender = new ListSender(muxDemux, db, local, listRate, listCache * 1024L * 1024);
+		start(listSender);
+		muxDemux.addHandler(Message.Type.NACK, listSender);
 
-		ListReceiver listReceiver = new ListReceiver(peerTable, local);
-		new Thread(listReceiver).start();
-		muxDemux.addHandler(listReceiver);
+		ListReceiver listReceiver = new ListReceiver(muxDemux, peerTable, local, listMemory * 1024L * 1024);
+		start(listReceiver);
+		muxDemux.addHandler(Message.Type.LIST, listReceiver);
+
+		Reconciler reconciler = new Reconciler(muxDemux, peerTable, db, local);
+		start(reconciler);
+		muxDemux.addHandler(Message.Type.TREE, reconciler);
+		muxDemux.addHandler(Message.Type.LIST, reconciler);
 
 		SynSender synSender = new SynSender(muxDemux, peerTable, local, synInterval);
-		new Thread(synSender).start();
+		if (runtime != null) {
+			synSender.setExecutor(runtime.scheduledExecutor());
+		}
+		startPeriodic(synSender, synSender::tick, synInterval);
+		peerTable.addListener(synSender);
 
 		SynReceiver synReceiver = new SynReceiver(muxDemux, peerTable, listSender, local);
-		new Thread(synReceiver).start();
-		muxDemux.addHandler(synReceiver);
+		start(synReceiver);
+		muxDemux.addHandler(Message.Type.SYN, synReceiver);
 
-		DebugReceiver debugReceiver = new DebugReceiver();
-		new Thread(debugReceiver).start();
-		muxDemux.addHandler(debugReceiver);
+		if (debug) {
+			DebugReceiver debugReceiver = new DebugReceiver();
+			start(debugReceiver);
+			muxDemux.addTap(debugReceiver);
+		}
 
-		// TODO: stop all other senders when shutting down
+		// Stop all other senders when shutting down, the MuxDemux keeps running
+		// on the main thread to send DYING messages
 		DyingSender dyingSender = new DyingSender(muxDemux, local, dyingInterval, dyingCount);
-		Runtime.getRuntime().addShutdownHook(new Thread(dyingSender));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if (runtime != null) {
+				runtime.shutdown(shutdownTimeout);
+			} else {
+				stopThreads(shutdownTimeout);
+			}
+			dyingSender.run();
+		}));
 
 		DyingReceiver dyingReceiver = new DyingReceiver(muxDemux, peerTable);
-		new Thread(dyingReceiver).start();
-		muxDemux.addHandler(dyingReceiver);
+		start(dyingReceiver);
+		muxDemux.addHandler(Message.Type.DYING, dyingReceiver);
 
 		FileDownloader fileDownloader = new FileDownloader(port, sharedDir, peerTable);
-		new Thread(fileDownloader).start();
+		if (runtime != null) {
+			fileDownloader.setExecutor(runtime.blockingExecutor());
+		} else {
+			startThread(fileDownloader);
+		}
+
+		FileIndex fileIndex = new FileIndex(peerTable, indexInterval);
+		if (runtime != null) {
+			fileIndex.setExecutor(runtime.scheduledExecutor());
+		}
+		startPeriodic(fileIndex, fileIndex::tick, indexInterval);
+		peerTable.addListener(fileIndex);
 
-		Dumper dumper = new Dumper(port, localDir, peerTable, db, fileDownloader);
-		new Thread(dumper).start();
+		Dumper dumper = new Dumper(port, localDir, peerTable, db, fileDownloader, muxDemux, fileIndex);
+		if (runtime != null) {
+			dumper.setClientExecutor(runtime.blockingExecutor());
+		}
+		start(dumper);
 
 		DownloadScheduler downloadScheduler = new DownloadScheduler(peerTable, fileDownloader, scheduleInterval);
-		new Thread(downloadScheduler).start();
+		fileDownloader.setListener(downloadScheduler);
+		if (snapshot != null) {
+			snapshot.restore(peerTable, downloadScheduler);
+		}
+		if (runtime != null) {
+			downloadScheduler.setExecutor(runtime.scheduledExecutor());
+		}
+		startPeriodic(downloadScheduler, downloadScheduler::tick, scheduleInterval);
+		peerTable.addListener(downloadScheduler);
+
+		Snapshot snapshotWriter = new Snapshot(stateDir.resolve(local+".snapshot"), db, peerTable, downloadScheduler, snapshotInterval);
+		startPeriodic(snapshotWriter, snapshotWriter::save, snapshotInterval);
+		Runtime.getRuntime().addShutdownHook(new Thread(snapshotWriter::save));
 
 		muxDemux.run();
 	}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Walks a directory tree in parallel. Each subdirectory is listed by its own
+ * task on a ForkJoinPool, so that slow file systems (e.g. NFS) can have
+ * several directory reads in flight. Each entry is stat'ed exactly once.
+ */
+class DirectoryWalker {
+	private final ForkJoinPool pool;
+
+	public DirectoryWalker(int parallelism) {
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Walks the tree below start. onFile is called with each regular file and
+	 * its attributes. If onDirectory isn't null, it's called with each
+	 * directory (including start) before it's listed. Both callbacks may be
+	 * called from several threads at once.
+	 */
+	public void walk(Path start, Consumer<Path> onDirectory, BiConsumer<Path, BasicFileAttributes> onFile) {
+		pool.invoke(new WalkTask(start, onDirectory, onFile));
+	}
+
+	private static class WalkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final Consumer<Path> onDirectory;
+		private final BiConsumer<Path, BasicFileAttributes> onFile;
+
+		public WalkTask(Path dir, Consumer<Path> onDirectory, BiConsumer<Path, BasicFileAttributes> onFile) {
+			this.dir = dir;
+			this.onDirectory = onDirectory;
+			this.onFile = onFile;
+		}
+
+		@Override
+		protected void compute() {
+			if (onDirectory != null) {
+				onDirectory.accept(dir);
+			}
+
+			List<WalkTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path p : stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(p, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue; // Removed in the meantime, or dangling link
+					}
+
+					if (attrs.isRegularFile()) {
+						onFile.accept(p, attrs);
+					} else if (attrs.isDirectory()) {
+						subtasks.add(new WalkTask(p, onDirectory, onFile));
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Cannot list "+dir+": "+e.getMessage());
+			}
+
+			invokeAll(subtasks);
+		}
+	}
+}
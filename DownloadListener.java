@@ -0,0 +1,7 @@
+/**
+ * A download listener is notified when a file download completes or fails.
+ * It's called from the downloading thread, so it must not block.
+ */
+interface DownloadListener {
+	public void downloaded(String peer, String filename, boolean succeeded);
+}
@@ -1,19 +1,49 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Schedules file downloads from other peers. It downloads EVERYTHING.
+ * Schedules file downloads from other peers. When a peer's database changes,
+ * only entries whose content changed since the previous version, or whose
+ * download didn't complete, are downloaded. Entries without metadata (sent by
+ * older peers) can't be compared and are always downloaded.
+ *
+ * The previous version is the one the peer table held, so it isn't copied;
+ * only the paths whose download is queued or failed are kept aside.
+ *
+ * Downloads are scheduled as soon as the peer table reports that a peer's
+ * database was synchronized, and all peers are checked periodically.
  */
-class DownloadScheduler implements Runnable {
+class DownloadScheduler implements PeerListener, DownloadListener, Runnable {
 	private PeerTable peerTable;
 	private FileDownloader fileDownloader;
 	private int scheduleInterval;
 
+	private BlockingQueue<PeerTable.Record> pending = new ArrayBlockingQueue<>(256);
+	private volatile Executor executor = null;
+
 	/**
-	 * For each peer ID, contains the last processed sequence number.
+	 * For each peer ID, contains the last processed version of its database.
 	 */
-	private Map<String, Integer> processed = new HashMap<>();
+	private Map<String, Database.Version> processed = new HashMap<>();
+
+	/**
+	 * For each peer ID, contains the paths of the last processed version
+	 * whose download didn't complete yet.
+	 */
+	private Map<String, Set<String>> incomplete = new HashMap<>();
+
+	private long completed = 0;
 
 	public DownloadScheduler(PeerTable peerTable, FileDownloader fileDownloader, int scheduleInterval) {
 		this.peerTable = peerTable;
@@ -21,37 +51,160 @@ class DownloadScheduler implements Runnable {
 		this.scheduleInterval = scheduleInterval;
 	}
 
+	/**
+	 * Returns the last processed sequence number of each peer.
+	 */
+	public synchronized Map<String, Integer> processed() {
+		Map<String, Integer> seqNums = new HashMap<>();
+		for (Map.Entry<String, Database.Version> e : processed.entrySet()) {
+			seqNums.put(e.getKey(), e.getValue().seqNum);
+		}
+		return seqNums;
+	}
+
+	/**
+	 * Returns the number of downloads which completed so far.
+	 */
+	public synchronized long completed() {
+		return completed;
+	}
+
+	/**
+	 * Returns the entries of the last processed database of a peer whose
+	 * download completed, or null.
+	 */
+	public synchronized Collection<Database.Entry> scheduled(String peer) {
+		Database.Version version = processed.get(peer);
+		if (version == null) {
+			return null;
+		}
+		Set<String> left = incomplete.getOrDefault(peer, Collections.emptySet());
+		List<Database.Entry> entries = new ArrayList<>();
+		for (Database.Entry entry : version.entries()) {
+			if (!left.contains(entry.path)) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Restores the state of a peer saved in a snapshot, so that files which
+	 * were already downloaded aren't downloaded again.
+	 */
+	public synchronized void restore(String peer, int seqNum, Collection<Database.Entry> entries) {
+		processed.put(peer, new Database(entries.toArray(new Database.Entry[0]), seqNum).version());
+		incomplete.remove(peer);
+	}
+
+	public synchronized void downloaded(String peer, String filename, boolean succeeded) {
+		Database.Version version = processed.get(peer);
+		Set<String> left = incomplete.get(peer);
+		if (version == null || left == null) {
+			return;
+		}
+		if (succeeded) {
+			if (left.remove(filename)) {
+				++completed;
+			}
+		} else if (Collections.binarySearch(version.data(), filename) >= 0) {
+			left.add(filename); // A download requested again may have failed
+		}
+	}
+
+	public void peerChanged(PeerTable.Event event) {
+		if (event.type == PeerTable.Event.Type.SYNCHRONIZED) {
+			pending.offer(event.record);
+			Executor executor = this.executor;
+			if (executor != null) {
+				executor.execute(this::drain);
+			}
+		}
+	}
+
+	/**
+	 * Handles peer events on executor as they arrive, instead of in run().
+	 * tick() must then be called every scheduleInterval seconds.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Schedules downloads from the peers reported so far.
+	 */
+	public void drain() {
+		PeerTable.Record rec;
+		while ((rec = pending.poll()) != null) {
+			schedule(rec);
+		}
+	}
+
+	/**
+	 * Schedules downloads from a peer if its database has changed.
+	 */
+	private synchronized void schedule(PeerTable.Record rec) {
+		Database db = rec.database();
+		if (db == null) {
+			return;
+		}
+
+		Database.Version version = db.version();
+		Database.Version previous = processed.get(rec.id);
+		if (version == previous) {
+			return; // Database hasn't changed
+		}
+
+		// Database has changed, download new and modified files, and those
+		// which didn't complete. Both versions are sorted by path.
+		System.out.println("Scheduling download of "+rec.id+" @ "+version.seqNum);
+		Set<String> left = incomplete.getOrDefault(rec.id, Collections.emptySet());
+		Set<String> scheduled = new HashSet<>();
+		Iterator<Database.Entry> p = (previous == null ? Collections.<Database.Entry>emptyList() : previous.entries()).iterator();
+		Database.Entry prev = p.hasNext() ? p.next() : null;
+		for (Database.Entry entry : version.entries()) {
+			while (prev != null && prev.path.compareTo(entry.path) < 0) {
+				prev = p.hasNext() ? p.next() : null;
+			}
+			if (prev != null && prev.sameContent(entry) && !left.contains(entry.path)) {
+				continue; // Unchanged
+			}
+			scheduled.add(entry.path);
+			fileDownloader.download(rec.id, entry.path);
+		}
+
+		processed.put(rec.id, version);
+		incomplete.put(rec.id, scheduled);
+	}
+
+	/**
+	 * Schedules downloads for all peers whose database has changed.
+	 */
+	public void tick() {
+		// TODO: cleanup entries in this.processed
+
+		for (PeerTable.Record rec : peerTable.records()) {
+			schedule(rec);
+		}
+	}
+
 	public void run() {
+		long interval = TimeUnit.SECONDS.toNanos(scheduleInterval);
+		long nextTick = System.nanoTime() + interval;
 		while (true) {
-			// TODO: cleanup entries in this.processed
-
+			PeerTable.Record rec;
 			try {
-				Thread.sleep(scheduleInterval * 1000);
+				rec = pending.poll(Math.max(0, nextTick - System.nanoTime()), TimeUnit.NANOSECONDS);
 			} catch (InterruptedException e) {
 				break;
 			}
 
-			for (PeerTable.Record rec : peerTable.records()) {
-				Database db = rec.database();
-				if (db == null) {
-					continue;
-				}
-
-				int seqNum = db.seqNum();
-				Integer lastSeqNum = processed.get(rec.id);
-				if (lastSeqNum != null && seqNum == lastSeqNum) {
-					continue; // Database hasn't changed
-				}
-
-				// Database has changed, re-download EVERYTHING (could be a modified
-				// file)
-				System.out.println("Scheduling download of "+rec.id+" @ "+seqNum);
-				List<String> data = db.data();
-				for (String filename : data) {
-					fileDownloader.download(rec.id, filename);
-				}
-
-				processed.put(rec.id, seqNum);
+			if (rec != null) {
+				schedule(rec);
+			}
+			if (System.nanoTime() - nextTick >= 0) {
+				tick();
+				nextTick = System.nanoTime() + interval;
 			}
 		}
 	}
@@ -1,6 +1,7 @@
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.List;
+import java.util.Map;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
@@ -11,6 +12,7 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.Executor;
 
 /**
  * Implements a simple TCP console. This is used by other peers to download
@@ -20,19 +22,33 @@ import java.nio.file.Paths;
  */
 class Dumper implements Runnable {
 	private static final int BACKLOG_SIZE = 3;
+	private static final int MAX_FIND_RESULTS = 100;
 
 	private ServerSocket servSocket;
 	private Path myPath;
 	private PeerTable peerTable;
 	private Database database;
 	private FileDownloader fileDownloader;
+	private MuxDemux muxDemux;
+	private FileIndex fileIndex;
+	private Executor clientExecutor = (r) -> new Thread(r).start();
 
-	public Dumper(int port, Path myPath, PeerTable pt, Database db, FileDownloader fileDownloader) throws IOException {
+	public Dumper(int port, Path myPath, PeerTable pt, Database db, FileDownloader fileDownloader, MuxDemux muxDemux, FileIndex fileIndex) throws IOException {
 		this.servSocket = new ServerSocket(port, BACKLOG_SIZE);
 		this.myPath = myPath;
 		this.peerTable = pt;
 		this.database = db;
 		this.fileDownloader = fileDownloader;
+		this.muxDemux = muxDemux;
+		this.fileIndex = fileIndex;
+	}
+
+	/**
+	 * Sets the executor running client handlers. By default, each client gets
+	 * its own thread.
+	 */
+	public void setClientExecutor(Executor executor) {
+		this.clientExecutor = executor;
 	}
 
 	private class ClientHandler implements Runnable {
@@ -54,32 +70,43 @@ class Dumper implements Runnable {
 				+ "\tudb, updateDatabase <e1,...>   update the local database\n"
 				+ "\tget <file>                     get a local file\n"
 				+ "\tpg, peerget <peer> <file>      download a remote file\n"
+				+ "\tf, find <file>                 display the peers holding a file\n"
+				+ "\tfp, findPrefix <prefix>        display files starting with prefix\n"
+				+ "\tfg, findGlob <glob>            display files matching a glob\n"
+				+ "\tqs, queuestats                 display outgoing queue counters\n"
 				+ "\tq, quit                        quit this console\n"
 				+ "\th, help                        display this usage\n";
 		}
 
 		private String prettyPeerTable() {
 			String msg = "Peer Table\n";
-			msg += "+------------------------------------------------+\n";
-			msg += String.format("| %1$16s | %2$13s | %3$11s |\n", "ID", "State", "Seq#");
-			msg += "+------------------------------------------------+\n";
+			msg += "+----------------------------------------------------------------------------------------+\n";
+			msg += String.format("| %1$16s | %2$13s | %3$11s | %4$8s | %5$6s | %6$8s | %7$6s |\n", "ID", "State", "Seq#", "RTT ms", "Loss", "kB/s", "Fails");
+			msg += "+----------------------------------------------------------------------------------------+\n";
 			List<PeerTable.Record> records = peerTable.records();
 			for (PeerTable.Record e : records) {
-				msg += String.format("| %1$16s | %2$13s | %3$11s |\n", e.id, e.state(), e.seqNum());
+				LinkQuality link = e.link();
+				msg += String.format("| %1$16s | %2$13s | %3$11s | %4$8s | %5$6s | %6$8s | %7$6s |\n", e.id, e.state(), e.seqNum(),
+					estimate("%.1f", link.rtt()), estimate("%.0f%%", 100 * link.loss()),
+					estimate("%.0f", link.throughput() / 1000), link.failures());
 			}
-			msg += "+------------------------------------------------+\n\n";
+			msg += "+----------------------------------------------------------------------------------------+\n\n";
 			return msg;
 		}
 
+		private String estimate(String format, double value) {
+			return Double.isNaN(value) ? "-" : String.format(format, value);
+		}
+
 		/* Tinyfied 83 chars database (83 is about half a screen size) */
 		private String prettyDatabase(Database database) {
-			String msg = "Database - Sequence Number: " + database.seqNum() + "\n";
 			if (database == null) {
-				msg = "Database not present\n";
-				return msg;
+				return "Database not present\n";
 			}
+			Database.Version version = database.version();
+			String msg = "Database - Sequence Number: " + version.seqNum + "\n";
 			msg += "+-------------------------------------------------------------------------------------+\n";
-			List<String> db = database.data();
+			List<String> db = version.data();
 			for (String s : db) {
 				msg += String.format("| %1$83s |\n", s);
 			}
@@ -119,8 +146,19 @@ class Dumper implements Runnable {
 			return msg;
 		}
 
+		private String prettyFound(Map<String, List<String>> found) {
+			String msg = "";
+			for (Map.Entry<String, List<String>> e : found.entrySet()) {
+				msg += e.getKey() + ": " + String.join(", ", e.getValue()) + "\n";
+			}
+			if (found.size() >= MAX_FIND_RESULTS) {
+				msg += "...\n";
+			}
+			return msg + found.size() + " files\n";
+		}
+
 		private void updateDatabase(String[] data) {
-			database.update(data);
+			database.update(Database.entries(data));
 		}
 
 		private void handleGetFile(String filename) {
@@ -218,6 +256,34 @@ class Dumper implements Runnable {
 				}
 				break;
 
+			case "find":
+			case "f":
+				if (cmdList.length > 1) {
+					ps.print(String.join(", ", fileIndex.peers(cmdList[1])) + "\n");
+				} else {
+					ps.print("No filename specified, find usage: find <file>\n");
+				}
+				break;
+
+			case "findprefix":
+			case "fp":
+				ps.print(prettyFound(fileIndex.withPrefix(cmdList.length > 1 ? cmdList[1] : "", MAX_FIND_RESULTS)));
+				break;
+
+			case "findglob":
+			case "fg":
+				if (cmdList.length > 1) {
+					ps.print(prettyFound(fileIndex.matching(cmdList[1], MAX_FIND_RESULTS)));
+				} else {
+					ps.print("No glob specified, fg usage: fg <glob>\n");
+				}
+				break;
+
+			case "queuestats":
+			case "qs":
+				ps.print(muxDemux.stats());
+				break;
+
 			case "help":
 			case "h":
 				ps.print(usage());
@@ -293,8 +359,11 @@ class Dumper implements Runnable {
 		while (true) {
 			try {
 				Socket client = servSocket.accept();
-				new Thread(new ClientHandler(client)).start();
+				clientExecutor.execute(new ClientHandler(client));
 			} catch (IOException e) {
+				if (servSocket.isClosed()) {
+					break; // Interrupted while shutting down
+				}
 				e.printStackTrace();
 			}
 		}
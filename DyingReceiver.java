@@ -16,10 +16,6 @@ class DyingReceiver implements MessageHandler, Runnable {
 	}
 
 	public void handleMessage(Envelope env) {
-		if (!(env.msg instanceof Message.Dying)) {
-			return;
-		}
-
 		incoming.offer(env);
 	}
 
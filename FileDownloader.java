@@ -12,20 +12,39 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.CharBuffer;
 import java.nio.file.Path;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Downloads files from other peers using a TCP socket.
+ *
+ * Requested downloads are queued once each, however many times they are
+ * requested, and none is dropped. The queue is drained either one download at
+ * a time on the downloader's own thread, or by a bounded number of worker
+ * tasks on an executor (typically backed by virtual threads). A download
+ * requested again while it's in progress runs again once it's over, since the
+ * file may have changed meanwhile.
  */
 class FileDownloader implements Runnable {
 	private static final int CONNECT_TIMEOUT = 30;
 	private static final int READ_TIMEOUT = 10;
+	private static final int MAX_CONCURRENT_DOWNLOADS = 8;
 
 	private int port;
 	private Path directory;
 	private PeerTable peerTable;
 
+	private DownloadListener listener = null;
+
+	// The downloads queued or in progress, in progress ones and those to run
+	// again, as peer/filename
+	private final Set<String> inFlight = new HashSet<>();
+	private final Set<String> running = new HashSet<>();
+	private final Set<String> again = new HashSet<>();
+
 	private static class Request {
 		public final String peer;
 		public final String filename;
@@ -34,9 +53,14 @@ class FileDownloader implements Runnable {
 			this.peer = peer;
 			this.filename = filename;
 		}
+
+		public String key() {
+			return peer+"/"+filename;
+		}
 	}
 
-	private BlockingQueue<Request> requests = new ArrayBlockingQueue<>(32);
+	// Bounded by inFlight, which holds each download once
+	private BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
 
 	public FileDownloader(int port, Path directory, PeerTable peerTable) {
 		this.port = port;
@@ -44,15 +68,43 @@ class FileDownloader implements Runnable {
 		this.peerTable = peerTable;
 	}
 
-	public void download(String peer, String filename) {
-		// Check if already queued
-		for (Request req : requests) {
-			if (peer.equals(req.peer) && filename.equals(req.filename)) {
-				return;
-			}
+	/**
+	 * Drains the queue with MAX_CONCURRENT_DOWNLOADS worker tasks on
+	 * executor, instead of run() on the downloader's own thread.
+	 */
+	public void setExecutor(Executor executor) {
+		for (int i = 0; i < MAX_CONCURRENT_DOWNLOADS; ++i) {
+			executor.execute(this);
 		}
+	}
+
+	/**
+	 * Sets the listener notified when downloads complete or fail.
+	 */
+	public void setListener(DownloadListener listener) {
+		this.listener = listener;
+	}
+
+	public synchronized void download(String peer, String filename) {
+		Request req = new Request(peer, filename);
+		if (inFlight.add(req.key())) {
+			requests.add(req);
+		} else if (running.contains(req.key())) {
+			again.add(req.key());
+		} // Otherwise already queued
+	}
+
+	private synchronized void started(Request req) {
+		running.add(req.key());
+	}
 
-		requests.offer(new Request(peer, filename));
+	private synchronized void finished(Request req) {
+		running.remove(req.key());
+		if (again.remove(req.key())) {
+			requests.add(req);
+		} else {
+			inFlight.remove(req.key());
+		}
 	}
 
 	/**
@@ -97,7 +149,10 @@ class FileDownloader implements Runnable {
 		}
 	}
 
-	private void doDownload(Request req) throws Exception {
+	/**
+	 * Downloads a file and returns its size.
+	 */
+	private int doDownload(Request req) throws Exception {
 		PeerTable.Record rec = peerTable.get(req.peer);
 		if (rec == null) {
 			throw new RuntimeException("requested a file download from an unknown peer: "+req.peer);
@@ -153,6 +208,7 @@ class FileDownloader implements Runnable {
 				osw.close();
 				fos.close();
 			}
+			return size;
 		} finally {
 			socket.close();
 		}
@@ -167,13 +223,39 @@ class FileDownloader implements Runnable {
 				break;
 			}
 
+			started(req);
+			boolean succeeded = false;
 			try {
-				System.out.println("Downloading "+req.filename+" from "+req.peer);
-				doDownload(req);
-			} catch (Exception e) {
-				System.err.println("Error downloading "+req.filename+" from "+req.peer);
-				e.printStackTrace();
+				succeeded = process(req);
+			} finally {
+				finished(req);
+			}
+			if (listener != null) {
+				listener.downloaded(req.peer, req.filename, succeeded);
+			}
+		}
+	}
+
+	/**
+	 * Downloads a file. Returns false if it failed.
+	 */
+	private boolean process(Request req) {
+		PeerTable.Record rec = peerTable.get(req.peer);
+		try {
+			System.out.println("Downloading "+req.filename+" from "+req.peer);
+			long start = System.nanoTime();
+			int size = doDownload(req);
+			if (rec != null) {
+				rec.link().downloaded(size, System.nanoTime() - start);
+			}
+			return true;
+		} catch (Exception e) {
+			System.err.println("Error downloading "+req.filename+" from "+req.peer);
+			e.printStackTrace();
+			if (rec != null) {
+				rec.link().downloadFailed();
 			}
+			return false;
 		}
 	}
 }
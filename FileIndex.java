@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes the files of all peers: maps each path to the peers holding it, so
+ * that finding who has a file, or files under a prefix or matching a glob,
+ * doesn't require scanning every peer database.
+ *
+ * Paths are kept in a sorted concurrent map: all paths with a given prefix
+ * are contiguous, so prefix lookups are a range scan, as in a trie, and
+ * lookups don't block updates. The index is updated when the peer table
+ * reports that a peer's database was synchronized, by merging the sorted paths
+ * of the previously indexed version with the new one, so that only added and
+ * removed paths are touched. Dying and expired peers are removed, and all
+ * peers are checked periodically in case an event was missed.
+ */
+class FileIndex implements PeerListener, Runnable {
+	private static final String[] NO_PEERS = new String[0];
+
+	private PeerTable peerTable;
+	private int interval;
+
+	private BlockingQueue<PeerTable.Record> pending = new ArrayBlockingQueue<>(256);
+	private volatile Executor executor = null;
+
+	/**
+	 * For each path, the sorted IDs of the peers holding it.
+	 */
+	private ConcurrentSkipListMap<String, String[]> peersByPath = new ConcurrentSkipListMap<>();
+
+	/**
+	 * For each peer ID, the indexed version of its database. Guarded by this.
+	 */
+	private Map<String, Database.Version> indexed = new HashMap<>();
+
+	public FileIndex(PeerTable peerTable, int interval) {
+		this.peerTable = peerTable;
+		this.interval = interval;
+	}
+
+	public void peerChanged(PeerTable.Event event) {
+		if (event.type != PeerTable.Event.Type.ADDED) {
+			pending.offer(event.record);
+			Executor executor = this.executor;
+			if (executor != null) {
+				executor.execute(this::drain);
+			}
+		}
+	}
+
+	/**
+	 * Handles peer events on executor as they arrive, instead of in run().
+	 * tick() must then be called every interval seconds.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Indexes the peers reported so far.
+	 */
+	public void drain() {
+		PeerTable.Record rec;
+		while ((rec = pending.poll()) != null) {
+			index(rec.id);
+		}
+	}
+
+	private static String[] add(String[] peers, String peer) {
+		int i = Arrays.binarySearch(peers, peer);
+		if (i >= 0) {
+			return peers;
+		}
+		i = -i - 1;
+		String[] added = new String[peers.length + 1];
+		System.arraycopy(peers, 0, added, 0, i);
+		added[i] = peer;
+		System.arraycopy(peers, i, added, i + 1, peers.length - i);
+		return added;
+	}
+
+	private static String[] remove(String[] peers, String peer) {
+		int i = Arrays.binarySearch(peers, peer);
+		if (i < 0) {
+			return peers;
+		}
+		if (peers.length == 1) {
+			return null; // Removes the path from the index
+		}
+		String[] removed = new String[peers.length - 1];
+		System.arraycopy(peers, 0, removed, 0, i);
+		System.arraycopy(peers, i + 1, removed, i, peers.length - i - 1);
+		return removed;
+	}
+
+	/**
+	 * Updates the index with the paths of a peer, from the previously indexed
+	 * version to the current one (either may be null). Both are sorted, so
+	 * they are merged in a single pass.
+	 */
+	private void reindex(String peer, Database.Version prev, Database.Version cur) {
+		Iterator<String> p = (prev == null ? Collections.<String>emptyList() : prev.data()).iterator();
+		Iterator<String> c = (cur == null ? Collections.<String>emptyList() : cur.data()).iterator();
+		String a = p.hasNext() ? p.next() : null;
+		String b = c.hasNext() ? c.next() : null;
+		while (a != null || b != null) {
+			int cmp = a == null ? 1 : b == null ? -1 : a.compareTo(b);
+			if (cmp < 0) {
+				peersByPath.computeIfPresent(a, (path, peers) -> remove(peers, peer));
+				a = p.hasNext() ? p.next() : null;
+			} else if (cmp > 0) {
+				peersByPath.merge(b, new String[] {peer}, (peers, added) -> add(peers, peer));
+				b = c.hasNext() ? c.next() : null;
+			} else {
+				a = p.hasNext() ? p.next() : null;
+				b = c.hasNext() ? c.next() : null;
+			}
+		}
+	}
+
+	/**
+	 * Indexes a peer's database if it has changed since it was indexed, or
+	 * removes it if the peer is gone.
+	 */
+	private synchronized void index(String peer) {
+		PeerTable.Record rec = peerTable.get(peer);
+		Database db = rec == null || rec.state() == PeerTable.State.DYING ? null : rec.database();
+		Database.Version cur = db == null ? null : db.version();
+		Database.Version prev = indexed.get(peer);
+		if (cur == prev) {
+			return;
+		}
+
+		reindex(peer, prev, cur);
+		if (cur == null) {
+			indexed.remove(peer);
+		} else {
+			indexed.put(peer, cur);
+		}
+	}
+
+	/**
+	 * Indexes all peers whose database has changed, and removes gone ones.
+	 */
+	public synchronized void tick() {
+		for (String peer : new ArrayList<>(indexed.keySet())) {
+			index(peer);
+		}
+		for (PeerTable.Record rec : peerTable.records()) {
+			index(rec.id);
+		}
+	}
+
+	/**
+	 * Returns the IDs of the peers holding a file.
+	 */
+	public List<String> peers(String path) {
+		return Arrays.asList(peersByPath.getOrDefault(path, NO_PEERS));
+	}
+
+	/**
+	 * Returns up to limit paths starting with prefix, with the peers holding
+	 * them, sorted by path.
+	 */
+	public Map<String, List<String>> withPrefix(String prefix, int limit) {
+		return find(prefix, null, limit);
+	}
+
+	/**
+	 * Returns up to limit paths matching a glob, with the peers holding them,
+	 * sorted by path. In globs, * matches any characters but /, ** any
+	 * characters and ? a single character but /.
+	 */
+	public Map<String, List<String>> matching(String glob, int limit) {
+		StringBuilder regex = new StringBuilder();
+		int literal = -1;
+		for (int i = 0; i < glob.length(); ++i) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (literal < 0) {
+					literal = i;
+				}
+				if (c == '?') {
+					regex.append("[^/]");
+				} else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					++i;
+				} else {
+					regex.append("[^/]*");
+				}
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+
+		// Only paths starting with the part before the first wildcard can match
+		String prefix = literal < 0 ? glob : glob.substring(0, literal);
+		return find(prefix, Pattern.compile(regex.toString()), limit);
+	}
+
+	private Map<String, List<String>> find(String prefix, Pattern pattern, int limit) {
+		Map<String, List<String>> found = new LinkedHashMap<>();
+		for (Map.Entry<String, String[]> e : peersByPath.tailMap(prefix).entrySet()) {
+			if (found.size() >= limit || !e.getKey().startsWith(prefix)) {
+				break;
+			}
+			if (pattern == null || pattern.matcher(e.getKey()).matches()) {
+				found.put(e.getKey(), Arrays.asList(e.getValue()));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the number of indexed paths.
+	 */
+	public int size() {
+		return peersByPath.size();
+	}
+
+	public void run() {
+		long interval = TimeUnit.SECONDS.toNanos(this.interval);
+		long nextTick = System.nanoTime() + interval;
+		while (true) {
+			PeerTable.Record rec;
+			try {
+				rec = pending.poll(Math.max(0, nextTick - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (rec != null) {
+				index(rec.id);
+			}
+			if (System.nanoTime() - nextTick >= 0) {
+				tick();
+				nextTick = System.nanoTime() + interval;
+			}
+		}
+	}
+}
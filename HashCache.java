@@ -0,0 +1,145 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes database entries for local files, and caches their digests so that
+ * a file is only hashed again when its size or modification time changes.
+ *
+ * The cache is persisted in a text file, one entry per line:
+ * size, mtime, digest and path separated by tabs. Entries can be computed from
+ * several threads at once.
+ */
+class HashCache {
+	private static final String ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path file;
+	private final Map<String, Database.Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean dirty = false;
+
+	public HashCache(Path file) {
+		this.file = file;
+		load();
+	}
+
+	private void load() {
+		try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length != 4 || !Message.validDigest(fields[2])) {
+					continue;
+				}
+				try {
+					long size = Long.parseLong(fields[0]);
+					long mtime = Long.parseLong(fields[1]);
+					entries.put(fields[3], new Database.Entry(fields[3], size, mtime, fields[2]));
+				} catch (NumberFormatException e) {
+					// Skip corrupted line
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// No cache yet
+		} catch (IOException e) {
+			System.err.println("Cannot load hash cache "+file+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the entry of the file at p, whose path in the database is path.
+	 * The file is hashed unless the cache already holds an entry with the same
+	 * size and modification time. Returns null if the file can't be read.
+	 */
+	public Database.Entry entry(String path, Path p, BasicFileAttributes attrs) {
+		long size = attrs.size();
+		long mtime = attrs.lastModifiedTime().toMillis();
+
+		Database.Entry cached = entries.get(path);
+		if (cached != null && cached.size == size && cached.mtime == mtime) {
+			return cached;
+		}
+
+		String digest;
+		try {
+			digest = digest(p);
+		} catch (IOException e) {
+			System.err.println("Cannot hash "+p+": "+e.getMessage());
+			return null;
+		}
+
+		Database.Entry entry = new Database.Entry(path, size, mtime, digest);
+		entries.put(path, entry);
+		dirty = true;
+		return entry;
+	}
+
+	/**
+	 * Computes the hex digest of a file.
+	 */
+	static String digest(Path p) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		byte[] buf = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(p)) {
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				md.update(buf, 0, n);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Drops entries of files which aren't in paths anymore, and writes the
+	 * cache to disk if it has changed.
+	 */
+	public synchronized void save(Set<String> paths) {
+		if (entries.keySet().retainAll(paths)) {
+			dirty = true;
+		}
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+			try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				for (Database.Entry e : entries.values()) {
+					if (e.path.indexOf('\n') >= 0) {
+						continue;
+					}
+					w.write(e.size+"\t"+e.mtime+"\t"+e.digest+"\t"+e.path+"\n");
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Cannot save hash cache "+file+": "+e.getMessage());
+		}
+	}
+}
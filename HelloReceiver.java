@@ -16,10 +16,6 @@ class HelloReceiver implements MessageHandler, Runnable {
 	}
 
 	public void handleMessage(Envelope env) {
-		if (!(env.msg instanceof Message.Hello)) {
-			return;
-		}
-
 		incoming.offer(env);
 	}
 
@@ -16,6 +16,19 @@ class HelloSender implements Runnable {
 		this.helloInterval = helloInterval;
 	}
 
+	/**
+	 * Broadcasts a single HELLO message.
+	 */
+	public void tick() {
+		Message.Hello hello = new Message.Hello(local, db.seqNum(), helloInterval, muxDemux.capabilities());
+		for (PeerTable.Record rec : peerTable.records()) {
+			if (rec.state() != PeerTable.State.DYING) {
+				hello.addPeer(rec.id);
+			}
+		}
+		muxDemux.broadcast(hello);
+	}
+
 	public void run() {
 		while (true) {
 			try {
@@ -24,13 +37,7 @@ class HelloSender implements Runnable {
 				break;
 			}
 
-			Message.Hello hello = new Message.Hello(local, db.seqNum(), helloInterval);
-			for (PeerTable.Record rec : peerTable.records()) {
-				if (rec.state() != PeerTable.State.DYING) {
-					hello.addPeer(rec.id);
-				}
-			}
-			muxDemux.broadcast(hello);
+			tick();
 		}
 	}
 }
@@ -0,0 +1,132 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the quality of the link to a peer, as exponentially weighted
+ * moving averages: the time between a SYN and the first LIST replying to it,
+ * the fraction of LIST messages lost, the throughput of file downloads, and
+ * the fraction of requests (SYN messages and downloads) which failed.
+ *
+ * Estimates are NaN until the first sample. SYN messages sent again before
+ * getting a reply count as failures, and aren't used to estimate the
+ * round-trip time since the reply could be to any of them.
+ */
+class LinkQuality {
+	private static final double RTT_WEIGHT = 1.0 / 8;
+	private static final double LOSS_WEIGHT = 1.0 / 8;
+	private static final double THROUGHPUT_WEIGHT = 1.0 / 4;
+	private static final double FAILURE_WEIGHT = 1.0 / 8;
+	private static final long MIN_THROUGHPUT_SIZE = 64 * 1024;
+
+	private double rtt = Double.NaN; // In milliseconds
+	private double loss = Double.NaN;
+	private double throughput = Double.NaN; // In bytes per second
+	private double failureRate = Double.NaN;
+	private long failures = 0;
+
+	private long synSentAt = 0; // In System.nanoTime() time
+	private boolean synPending = false;
+	private boolean synRetransmitted = false;
+
+	private static double average(double avg, double sample, double weight) {
+		if (Double.isNaN(avg)) {
+			return sample;
+		}
+		return avg + weight * (sample - avg);
+	}
+
+	private void outcome(boolean failed) {
+		failureRate = average(failureRate, failed ? 1 : 0, FAILURE_WEIGHT);
+		if (failed) {
+			++failures;
+		}
+	}
+
+	/**
+	 * Records a SYN sent to the peer.
+	 */
+	public synchronized void synSent() {
+		if (synPending) {
+			outcome(true); // The previous one went unanswered
+			synRetransmitted = true;
+		} else {
+			synPending = true;
+			synRetransmitted = false;
+		}
+		synSentAt = System.nanoTime();
+	}
+
+	/**
+	 * Records a reply to a SYN. Replies without a pending SYN are ignored.
+	 */
+	public synchronized void synAnswered() {
+		if (!synPending) {
+			return;
+		}
+		if (!synRetransmitted) {
+			rtt = average(rtt, (System.nanoTime() - synSentAt) / (double) TimeUnit.MILLISECONDS.toNanos(1), RTT_WEIGHT);
+		}
+		synPending = false;
+		outcome(false);
+	}
+
+	/**
+	 * Records the fraction of a LIST reply which was lost.
+	 */
+	public synchronized void listReceived(double lost) {
+		loss = average(loss, lost, LOSS_WEIGHT);
+	}
+
+	/**
+	 * Records a successful download of size bytes, which took nanos. Small
+	 * downloads are dominated by the connection setup, and aren't used to
+	 * estimate the throughput.
+	 */
+	public synchronized void downloaded(long size, long nanos) {
+		if (size >= MIN_THROUGHPUT_SIZE && nanos > 0) {
+			throughput = average(throughput, size * (double) TimeUnit.SECONDS.toNanos(1) / nanos, THROUGHPUT_WEIGHT);
+		}
+		outcome(false);
+	}
+
+	/**
+	 * Records a failed download.
+	 */
+	public synchronized void downloadFailed() {
+		outcome(true);
+	}
+
+	/**
+	 * Returns the SYN to LIST round-trip time, in milliseconds.
+	 */
+	public synchronized double rtt() {
+		return rtt;
+	}
+
+	/**
+	 * Returns the fraction of LIST messages lost, between 0 and 1.
+	 */
+	public synchronized double loss() {
+		return loss;
+	}
+
+	/**
+	 * Returns the download throughput, in bytes per second.
+	 */
+	public synchronized double throughput() {
+		return throughput;
+	}
+
+	/**
+	 * Returns the fraction of failed requests, between 0 and 1.
+	 */
+	public synchronized double failureRate() {
+		return failureRate;
+	}
+
+	/**
+	 * Returns the total number of failed requests.
+	 */
+	public synchronized long failures() {
+		return failures;
+	}
+}
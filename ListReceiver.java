@@ -1,18 +1,75 @@
+import java.net.InetAddress;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
 /**
  * Handles LIST messages, groups them by (peer, sequence number) and
- * synchronizes the peer table when the database is complete.
+ * synchronizes the peer table when the database is complete. LIST messages
+ * carrying changes are applied to the database we already have for the peer.
+ *
+ * When a reception stops progressing, peers supporting it are sent a NACK
+ * with the ranges of missing parts, so that only those are sent again. We
+ * give up after a few unanswered NACK messages, and the next SYN asks for the
+ * whole reply again. SYN messages are deferred as long as a reception is
+ * progressing. Parts are sent in order, so parts missing well before the last
+ * one received were lost: they are asked for while the rest is still arriving,
+ * which also lets the peer slow down before the whole reply is sent.
+ *
+ * Pending receptions only allocate storage for the parts actually received,
+ * in chunks, and their estimated size is limited by a memory budget: when it's
+ * exceeded, the least recently updated receptions are dropped. Receptions
+ * which don't progress for a while, or from peers which are gone, are dropped
+ * too. Databases expected to take more than the whole budget aren't received
+ * at all, and their peer isn't asked for them again for a while.
  */
 class ListReceiver implements MessageHandler, Runnable {
+	private static final long NACK_DELAY = TimeUnit.MILLISECONDS.toNanos(200);
+	private static final int MAX_NACKS = 5;
+	private static final int GAP_WINDOW = 64; // Parts which may still arrive out of order
+	private static final long PENDING_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+	private static final long REFUSED_BACKOFF = TimeUnit.SECONDS.toNanos(60);
+
+	private MuxDemux muxDemux;
 	private PeerTable peerTable;
 	private String local;
+	private long budget;
 
 	private BlockingQueue<Envelope> incoming = new ArrayBlockingQueue<>(32);
-	private Map<String, PendingReception> pending = new HashMap<>();
+
+	// In access order, least recently updated first
+	private Map<String, PendingReception> pending = new LinkedHashMap<>(16, 0.75f, true);
+	private long pendingBytes = 0;
+	private Map<String, Integer> refused = new HashMap<>(); // Peer ID -> sequence number
+
+	/**
+	 * The rows of CHUNK_SIZE consecutive parts, allocated when the first of
+	 * them is received.
+	 */
+	private static class Chunk {
+		public static final int CHUNK_SIZE = 256;
+		public static final long BYTES = 64 + CHUNK_SIZE * (4 + 1 + 4);
+		public static final long MIN_ROW_BYTES = 96; // A row, but for its strings
+		// A row with a path of usual length and a SHA-256 digest
+		public static final long TYPICAL_ROW_BYTES = rowBytes(48, 64);
+
+		/**
+		 * Returns the size of a row with the given path and digest lengths.
+		 */
+		public static long rowBytes(int pathLength, int digestLength) {
+			return MIN_ROW_BYTES + 2 * pathLength + (digestLength > 0 ? 48 + 2 * digestLength : 0);
+		}
+
+		public final Database.Entry[] entries = new Database.Entry[CHUNK_SIZE];
+		public final boolean[] removed = new boolean[CHUNK_SIZE];
+		public final int[] prefixes = new int[CHUNK_SIZE];
+	}
 
 	/**
 	 * A pending reception is an in-progress LIST message reception. It collects
@@ -20,19 +77,55 @@ class ListReceiver implements MessageHandler, Runnable {
 	 * received.
 	 */
 	private static class PendingReception {
+		public final InetAddress address;
 		public final String peer;
 		public final int seqNum;
 		public final int total;
+		public final int base;
 
 		private int received = 0;
-		private String[] data;
+		private Map<Integer, Chunk> chunks = new HashMap<>();
+		private long bytes = 0;
+
+		// The last time a missing part arrived or a NACK was sent, and the
+		// number of NACK messages sent since a missing part arrived
+		private long lastProgress = System.nanoTime();
+		private int nacks = 0;
 
-		public PendingReception(String peer, int seqNum, int total) {
+		// The current round, i.e. the parts of a reply to a single SYN or NACK,
+		// which are sent in order
+		private int roundArrived = 0;
+		private int roundLast = -1;
+		private int roundRequested = -1; // Parts asked for by a NACK, or -1
+
+		// The parts before this one were asked for while the round went on
+		private int gapsAsked = 0;
+
+		public PendingReception(InetAddress address, String peer, int seqNum, int total, int base) {
+			this.address = address;
 			this.peer = peer;
 			this.seqNum = seqNum;
 			this.total = total;
+			this.base = base;
+		}
 
-			this.data = new String[total];
+		/**
+		 * Returns the received row of a part, or null.
+		 */
+		private Database.Entry entry(int partNum) {
+			Chunk c = chunks.get(partNum / Chunk.CHUNK_SIZE);
+			return c == null ? null : c.entries[partNum % Chunk.CHUNK_SIZE];
+		}
+
+		/**
+		 * Returns the estimated memory used by the received rows.
+		 */
+		public long bytes() {
+			return bytes;
+		}
+
+		public boolean delta() {
+			return base != Message.Syn.NO_BASE;
 		}
 
 		/**
@@ -43,60 +136,312 @@ class ListReceiver implements MessageHandler, Runnable {
 		}
 
 		/**
-		 * Receives a part of the database.
+		 * Counts an arriving part, including duplicates. Returns the fraction of
+		 * the previous round which was lost if this part starts a new one, or -1.
 		 */
-		public void receive(int partNum, String row) {
-			if (data[partNum] != null) {
+		public double arrive(int partNum) {
+			double lost = -1;
+			if (partNum < gapsAsked) {
+				return lost; // Asked for again, was counted as lost
+			}
+			if (partNum <= roundLast) {
+				lost = roundLoss(true);
+				startRound(-1);
+			}
+			roundLast = partNum;
+			++roundArrived;
+			return lost;
+		}
+
+		/**
+		 * Starts a new round, of requested parts if it's a reply to a NACK, or of
+		 * a whole reply if requested is -1.
+		 */
+		public void startRound(int requested) {
+			roundArrived = 0;
+			roundLast = -1;
+			roundRequested = requested;
+			gapsAsked = 0;
+		}
+
+		/**
+		 * Returns the fraction of the current round which was lost. If the
+		 * round isn't over, only parts up to the last received one are known to
+		 * have been sent.
+		 */
+		public double roundLoss(boolean over) {
+			int sent = roundRequested >= 0 ? roundRequested : over ? total : roundLast + 1;
+			return sent == 0 ? 0 : Math.max(0, 1 - (double) roundArrived / sent);
+		}
+
+		/**
+		 * Returns a NACK for the missing parts from start to end excluded, as
+		 * many ranges of them as fit.
+		 */
+		private Message.Nack missing(String local, int start, int end) {
+			Message.Nack nack = new Message.Nack(local, peer, seqNum, base);
+			int i = start;
+			while (nack.ranges() < Message.Nack.MAX_RANGES) {
+				while (i < end && entry(i) != null) {
+					++i;
+				}
+				if (i == end) {
+					break;
+				}
+				int first = i;
+				while (i < end && entry(i) == null) {
+					// Skip chunks which weren't allocated at once, without
+					// overflowing when end is close to Integer.MAX_VALUE
+					long next = chunks.containsKey(i / Chunk.CHUNK_SIZE) ? i + 1L : (i / Chunk.CHUNK_SIZE + 1L) * Chunk.CHUNK_SIZE;
+					i = (int) Math.min(next, end);
+				}
+				nack.addRange(first, i - 1);
+			}
+			return nack;
+		}
+
+		/**
+		 * Returns a NACK for the missing parts.
+		 */
+		public Message.Nack missing(String local) {
+			return missing(local, 0, total);
+		}
+
+		/**
+		 * Returns a NACK for the parts of a whole reply which went missing
+		 * since the last time, while the reply is still arriving, or null if
+		 * none did.
+		 */
+		public Message.Nack gaps(String local) {
+			int end = roundLast - GAP_WINDOW;
+			if (roundRequested >= 0 || end <= gapsAsked) {
+				return null;
+			}
+			Message.Nack nack = missing(local, gapsAsked, end);
+			if (nack.ranges() == 0) {
+				gapsAsked = end;
+				return null;
+			}
+			gapsAsked = nack.last(nack.ranges() - 1) + 1;
+			return nack;
+		}
+
+		/**
+		 * Returns the number of parts a NACK asks for.
+		 */
+		private static int parts(Message.Nack nack) {
+			int n = 0;
+			for (int i = 0; i < nack.ranges(); ++i) {
+				n += nack.last(i) - nack.first(i) + 1;
+			}
+			return n;
+		}
+
+		/**
+		 * Records a NACK sent for the missing parts. Returns the fraction of
+		 * the round it ends which was lost.
+		 */
+		public double nacked(Message.Nack nack) {
+			double lost = roundLoss(true);
+			startRound(parts(nack));
+			lastProgress = System.nanoTime();
+			++nacks;
+			return lost;
+		}
+
+		/**
+		 * Receives a part of the database. If prefix isn't 0, the row's path
+		 * starts with the first prefix chars of the previous row's path.
+		 * Returns false if the part was already received.
+		 */
+		public boolean receive(int partNum, Database.Entry row, boolean rowRemoved, int prefix) {
+			Chunk c = chunks.get(partNum / Chunk.CHUNK_SIZE);
+			if (c == null) {
+				c = new Chunk();
+				chunks.put(partNum / Chunk.CHUNK_SIZE, c);
+				bytes += Chunk.BYTES;
+			}
+			int i = partNum % Chunk.CHUNK_SIZE;
+			if (c.entries[i] != null) {
 				// Rows, once set, are immutable
-				if (!data[partNum].equals(row)) {
+				if (!c.entries[i].equals(row) || c.removed[i] != rowRemoved || c.prefixes[i] != prefix) {
 					System.err.println("received two different values for row "+partNum+" from peer "+peer);
 				}
-				return;
+				return false;
 			}
-			data[partNum] = row;
+			c.entries[i] = row;
+			c.removed[i] = rowRemoved;
+			c.prefixes[i] = prefix;
+			bytes += Chunk.rowBytes(row.path.length(), row.digest != null ? row.digest.length() : 0);
 			++received;
+			lastProgress = System.nanoTime();
+			nacks = 0;
+			return true;
 		}
 
 		/**
 		 * Returns the complete database contents. Can only be used once the
 		 * received database is complete.
 		 */
-		public String[] data() {
+		public Database.Entry[] entries() {
 			if (!done()) {
 				throw new RuntimeException("Attempt to retrieve a incomplete database");
 			}
-			return data;
+
+			// Rebuild prefixed paths, in order since each depends on the previous one
+			Database.Entry[] entries = new Database.Entry[total];
+			for (int i = 0; i < total; ++i) {
+				Chunk c = chunks.get(i / Chunk.CHUNK_SIZE);
+				Database.Entry e = c.entries[i % Chunk.CHUNK_SIZE];
+				int prefix = c.prefixes[i % Chunk.CHUNK_SIZE];
+				if (prefix != 0) {
+					String prev = i > 0 ? entries[i - 1].path : "";
+					if (prefix > prev.length()) {
+						throw new IllegalArgumentException("invalid path prefix length for row "+i);
+					}
+					e = new Database.Entry(prev.substring(0, prefix) + e.path, e.size, e.mtime, e.digest);
+				}
+				entries[i] = e;
+			}
+			return entries;
+		}
+
+		/**
+		 * Returns the received changes. Can only be used once all of them have
+		 * been received.
+		 */
+		public Database.Changes changes() {
+			Database.Entry[] entries = entries();
+			List<Database.Entry> updated = new ArrayList<>();
+			List<String> removedPaths = new ArrayList<>();
+			for (int i = 0; i < total; ++i) {
+				if (chunks.get(i / Chunk.CHUNK_SIZE).removed[i % Chunk.CHUNK_SIZE]) {
+					removedPaths.add(entries[i].path);
+				} else {
+					updated.add(entries[i]);
+				}
+			}
+			return new Database.Changes(base, seqNum, updated, removedPaths);
 		}
 	}
 
-	public ListReceiver(PeerTable peerTable, String local) {
+	/**
+	 * Creates a receiver keeping up to budget bytes of pending receptions.
+	 */
+	public ListReceiver(MuxDemux muxDemux, PeerTable peerTable, String local, long budget) {
+		this.muxDemux = muxDemux;
 		this.peerTable = peerTable;
 		this.local = local;
+		this.budget = budget;
 	}
 
 	public void handleMessage(Envelope env) {
-		if (!(env.msg instanceof Message.List)) {
-			return;
+		incoming.offer(env);
+	}
+
+	/**
+	 * Sends a NACK for receptions which stopped progressing, or which lost
+	 * parts while progressing, to peers supporting it.
+	 */
+	private void nack() {
+		long now = System.nanoTime();
+		for (PendingReception pr : pending.values()) {
+			if (!muxDemux.negotiated(pr.address, Message.Hello.CAP_NACK)) {
+				continue;
+			}
+			PeerTable.Record rec = peerTable.get(pr.peer);
+			if (rec == null || rec.pendingSeqNum() != pr.seqNum) {
+				continue; // Gone, or a newer version is needed anyway
+			}
+
+			Message.Nack nack = null;
+			if (now - pr.lastProgress < NACK_DELAY) {
+				nack = pr.gaps(local);
+			} else if (pr.nacks < MAX_NACKS) {
+				nack = pr.missing(local);
+				rec.link().listReceived(pr.nacked(nack));
+				rec.deferSynchronize();
+			}
+			if (nack != null) {
+				muxDemux.send(new Envelope(pr.address, nack));
+			}
+		}
+	}
+
+	/**
+	 * Returns the memory a complete reception of total parts is expected to
+	 * take. Underestimating it would let in receptions which can only be
+	 * evicted part-way, and asked for again.
+	 */
+	private static long expectedBytes(int total) {
+		long chunks = (total + (long) Chunk.CHUNK_SIZE - 1) / Chunk.CHUNK_SIZE;
+		return chunks * Chunk.BYTES + total * Chunk.TYPICAL_ROW_BYTES;
+	}
+
+	private void drop(String peer) {
+		PendingReception pr = pending.remove(peer);
+		if (pr != null) {
+			pendingBytes -= pr.bytes();
 		}
+	}
 
-		incoming.offer(env);
+	/**
+	 * Drops the least recently updated receptions until pending ones fit in
+	 * the memory budget.
+	 */
+	private void evict() {
+		Iterator<PendingReception> it = pending.values().iterator();
+		while (pendingBytes > budget && it.hasNext()) {
+			PendingReception pr = it.next();
+			System.err.println("Dropping the reception of "+pr.peer+"'s database: over memory budget");
+			it.remove();
+			pendingBytes -= pr.bytes();
+		}
 	}
 
-	public void run() {
-		// TODO: periodically cleanup this.pending
+	/**
+	 * Drops receptions which stopped progressing, or whose peer is gone.
+	 */
+	private void expire() {
+		long now = System.nanoTime();
+		Iterator<PendingReception> it = pending.values().iterator();
+		while (it.hasNext()) {
+			PendingReception pr = it.next();
+			PeerTable.Record rec = peerTable.get(pr.peer);
+			if (rec == null || rec.state() == PeerTable.State.DYING || now - pr.lastProgress > PENDING_TIMEOUT) {
+				it.remove();
+				pendingBytes -= pr.bytes();
+			}
+		}
+		refused.keySet().removeIf(peer -> peerTable.get(peer) == null);
+	}
 
+	public void run() {
+		long nextCheck = System.nanoTime() + NACK_DELAY;
 		while (true) {
 			Envelope env;
 			try {
-				env = incoming.take();
+				env = incoming.poll(Math.max(0, nextCheck - System.nanoTime()), TimeUnit.NANOSECONDS);
 			} catch (InterruptedException e) {
 				break;
 			}
 
+			if (System.nanoTime() - nextCheck >= 0) {
+				expire();
+				nack();
+				nextCheck = System.nanoTime() + NACK_DELAY;
+			}
+			if (env == null) {
+				continue;
+			}
+
 			Message.List list = (Message.List)env.msg;
 			if (!local.equals(list.peer)) {
 				continue; // Not for me
 			}
+			if (list.op == Message.List.BUCKET) {
+				continue; // Handled by the Reconciler
+			}
 
 			try {
 				peerTable.update(list.sender, env.address, list.seqNum);
@@ -112,7 +457,7 @@ class ListReceiver implements MessageHandler, Runnable {
 			}
 			if (rec.state() == PeerTable.State.DYING) {
 				// Peer is dying, throw away everything related to it
-				pending.remove(list.sender);
+				drop(list.sender);
 				continue;
 			}
 			if (list.seqNum < rec.pendingSeqNum()) {
@@ -124,8 +469,24 @@ class ListReceiver implements MessageHandler, Runnable {
 			// The LIST sequence number may be newer than the pending reception, in
 			// this case overwrite the old pending reception
 			PendingReception pr = pending.get(list.sender);
-			if (pr == null || pr.seqNum < list.seqNum) {
-				pr = new PendingReception(list.sender, list.seqNum, list.totalParts);
+			int base = list.op == Message.List.PREFIXED ? Message.Syn.NO_BASE : list.baseSeqNum;
+			if (pr == null || pr.seqNum < list.seqNum || (pr.seqNum == list.seqNum && pr.base != base)) {
+				// A newer version, or a reply to another SYN for the same version
+				// (full or changes since another base)
+				rec.link().synAnswered();
+				if (pr != null) {
+					rec.link().listReceived(pr.roundLoss(true));
+				}
+				drop(list.sender);
+				if (expectedBytes(list.totalParts) > budget) {
+					if (!Integer.valueOf(list.seqNum).equals(refused.put(list.sender, list.seqNum))) {
+						System.err.println("Ignoring the database of "+list.sender+": "+list.totalParts+" parts can't fit in the memory budget");
+					}
+					// Asking again soon would only bring the same reply
+					rec.deferSynchronize(REFUSED_BACKOFF);
+					continue;
+				}
+				pr = new PendingReception(env.address, list.sender, list.seqNum, list.totalParts, base);
 				pending.put(list.sender, pr);
 			} else {
 				if (pr.seqNum > list.seqNum) {
@@ -135,24 +496,43 @@ class ListReceiver implements MessageHandler, Runnable {
 				if (pr.total != list.totalParts) {
 					// The LIST total cannot change
 					System.err.println("Received a LIST with total "+list.totalParts+", which is different from previous ones (expected "+pr.total+")");
-					pending.remove(list.sender);
+					drop(list.sender);
 					continue;
 				}
 			}
 
 			// partNum is already checked by Message.List
-			pr.receive(list.partNum, list.data);
+			double lost = pr.arrive(list.partNum);
+			if (lost >= 0) {
+				rec.link().synAnswered(); // Another reply
+				rec.link().listReceived(lost);
+			}
+			long bytes = pr.bytes();
+			if (pr.receive(list.partNum, list.entry(), list.op == Message.List.REMOVED, list.prefix())) {
+				rec.deferSynchronize();
+			}
+			pendingBytes += pr.bytes() - bytes;
+			evict();
+			if (!pending.containsKey(list.sender)) {
+				continue; // The reception alone doesn't fit
+			}
 
 			if (pr.done()) {
-				// We got a complete database, synchronize the peer
+				// We got a complete database or all changes, synchronize the peer
+				rec.link().listReceived(pr.roundLoss(false));
 				try {
-					peerTable.synchronize(pr.peer, pr.data(), pr.seqNum);
+					if (pr.delta()) {
+						peerTable.synchronize(pr.peer, pr.changes());
+					} else {
+						peerTable.synchronize(pr.peer, pr.entries(), pr.seqNum);
+					}
 				} catch (Exception e) {
 					System.out.println("Cannot synchronize peer "+pr.peer);
 					e.printStackTrace();
+					drop(list.sender);
 					continue;
 				}
-				pending.remove(list.sender);
+				drop(list.sender);
 			}
 		}
 	}
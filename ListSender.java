@@ -1,65 +1,584 @@
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 /**
- * Sends LIST messages from the local database to other peers.
+ * Sends LIST messages from the local database to other peers. Peers which
+ * already have a version of the database are only sent the changes since that
+ * version. If the history doesn't go back that far, peers supporting it are
+ * sent the root of the summary tree to start a reconciliation instead.
+ *
+ * A full database is sent sorted by path, and to peers supporting it each
+ * path only carries what differs from the previous one.
+ *
+ * Peers missing parts of a reply may ask for them with a NACK: if the version
+ * they were sent is still the current one, only those parts are sent again.
+ *
+ * Replies are paced rather than sent back-to-back, which would overrun the
+ * outgoing queue and the receivers' queues: each destination has a token
+ * bucket, and all replies share a global one capping the total rate. Replies
+ * to different peers are interleaved. The rate of each destination adapts to
+ * loss, AIMD-style: it is halved when the peer sends a NACK, or a SYN asking
+ * again for a reply already sent, and grows otherwise. Peers supporting NACK
+ * report loss while a reply is arriving, so their rate grows as it is sent;
+ * other peers can only report it once a reply is over, so their rate grows
+ * once per reply.
+ *
+ * Replies to several peers asking for the same version of the database are
+ * only built and encoded once: the LIST messages of a reply are cached, up to
+ * a memory budget, and copied for each peer, copies sharing their encoded
+ * form but for the peer ID. The cache is emptied when the database moves to a
+ * new version.
  */
-class ListSender implements Runnable {
+class ListSender implements MessageHandler, Runnable {
+	private static final double INITIAL_RATE = 2000; // In messages per second
+	private static final double MIN_RATE = 50;
+	private static final double RATE_STEP = 100;
+	private static final int BURST = 32; // The receivers' queue size
+	private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+	private static final long SLOT_BYTES = 8; // A reference in Reply.parts
+	private static final int ENCODE_BUFFER_SIZE = 64 * 1024;
+
 	private MuxDemux muxDemux;
 	private Database db;
 	private String local;
+	private double rate;
+	private Pacer global;
+	private long cacheBudget;
 
 	private BlockingQueue<Request> outgoing = new ArrayBlockingQueue<>(32);
 
+	/**
+	 * The pacer of a destination, and the last reply fully sent to it.
+	 */
+	private static class Destination {
+		public final Pacer pacer;
+		public String id = null;
+		public int seqNum;
+		public int base;
+		public int transfers = 0;
+		public long usedAt;
+
+		public Destination(Pacer pacer) {
+			this.pacer = pacer;
+		}
+	}
+
+	/**
+	 * A reply being sent, replying with version seqNum of the database.
+	 */
+	private static class Transfer {
+		public final Request req;
+		public final Destination dest;
+		public final int seqNum;
+		public final Iterator<Message> parts;
+
+		public Transfer(Request req, Destination dest, int seqNum, Iterator<Message> parts) {
+			this.req = req;
+			this.dest = dest;
+			this.seqNum = seqNum;
+			this.parts = parts;
+		}
+	}
+
+	/**
+	 * The cached LIST messages of a reply, either the changes since base or
+	 * the full database if base is Message.Syn.NO_BASE. Parts are cached as
+	 * they are first built.
+	 */
+	private static class Reply {
+		public final int base;
+		public final boolean prefixed;
+		public final Message.List[] parts;
+
+		public Reply(int base, boolean prefixed, int total) {
+			this.base = base;
+			this.prefixed = prefixed;
+			this.parts = new Message.List[total];
+		}
+	}
+
+	// Only used by the sender thread
+	private Map<InetAddress, Destination> destinations = new HashMap<>();
+	private List<Transfer> active = new ArrayList<>();
+	private List<Reply> cache = new ArrayList<>();
+	private int cachedSeqNum = 0;
+	private long cachedBytes = 0;
+	private final MessageCodec codec = new MessageCodec();
+	private final ByteBuffer encodeBuffer = ByteBuffer.allocate(ENCODE_BUFFER_SIZE);
+
 	private static class Request {
 		public final InetAddress address;
 		public final String id;
+		public final int base;
+		public final Message.Nack nack;
 
-		public Request(InetAddress address, String id) {
+		public Request(InetAddress address, String id, int base, Message.Nack nack) {
 			this.address = address;
 			this.id = id;
+			this.base = base;
+			this.nack = nack;
 		}
 	}
 
-	public ListSender(MuxDemux muxDemux, Database db, String local) {
+	/**
+	 * Creates a sender of LIST messages at a total rate of at most rate
+	 * messages per second, caching replies up to cacheBudget bytes.
+	 */
+	public ListSender(MuxDemux muxDemux, Database db, String local, int rate, long cacheBudget) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("invalid rate: not positive");
+		}
 		this.muxDemux = muxDemux;
 		this.db = db;
 		this.local = local;
+		this.rate = rate;
+		this.global = new Pacer(rate, BURST);
+		this.cacheBudget = cacheBudget;
 	}
 
 	/**
-	 * Requests to send the local database to a remote peer.
+	 * Requests to send the local database to a remote peer. If base isn't
+	 * Message.Syn.NO_BASE, the peer already has this version of the database.
 	 */
-	public synchronized void sendTo(InetAddress address, String id) {
+	public synchronized void sendTo(InetAddress address, String id, int base) {
 		// Check if already queued
 		for (Request req : outgoing) {
-			if (address.equals(req.address) && id.equals(req.id)) {
+			if (address.equals(req.address) && id.equals(req.id) && req.nack == null) {
 				return;
 			}
 		}
 
-		outgoing.offer(new Request(address, id));
+		outgoing.offer(new Request(address, id, base, null));
+	}
+
+	public synchronized void handleMessage(Envelope env) {
+		Message.Nack nack = (Message.Nack)env.msg;
+		if (!local.equals(nack.peer)) {
+			return; // Not for me
+		}
+
+		// Anything already queued for the peer is either the whole reply or
+		// a previous NACK, which the peer will follow up on
+		for (Request req : outgoing) {
+			if (env.address.equals(req.address) && nack.sender.equals(req.id)) {
+				return;
+			}
+		}
+
+		outgoing.offer(new Request(env.address, nack.sender, nack.baseSeqNum, nack));
+	}
+
+	/**
+	 * Returns the LIST message carrying a change: updated entries come first,
+	 * then removed ones.
+	 */
+	private Message.List change(Request req, Database.Changes changes, int i) {
+		int total = changes.size();
+		if (i < changes.updated.size()) {
+			return new Message.List(local, req.id, changes.to, total, i, changes.updated.get(i), changes.from, Message.List.UPDATED);
+		}
+		String path = changes.removed.get(i - changes.updated.size());
+		return new Message.List(local, req.id, changes.to, total, i, new Database.Entry(path), changes.from, Message.List.REMOVED);
+	}
+
+	/**
+	 * Returns the LIST message carrying the entry i out of total of a full
+	 * database. prev is the previous entry's path, or "" for the first one.
+	 */
+	private Message.List row(Request req, int seqNum, int total, int i, Database.Entry entry, String prev, boolean prefixed) {
+		int prefix = prefixed ? commonPrefix(prev, entry.path) : 0;
+		if (prefix > 0) {
+			return new Message.List(local, req.id, seqNum, total, i, entry.path.substring(prefix),
+					entry.size, entry.mtime, entry.digest, prefix, Message.List.PREFIXED);
+		}
+		return new Message.List(local, req.id, seqNum, total, i, entry);
+	}
+
+	/**
+	 * Sends the root of the summary tree of the database, if the peer supports
+	 * reconciliation. Returns false if a full transfer is needed instead.
+	 */
+	private boolean sendSummary(Request req) {
+		if (!muxDemux.negotiated(req.address, Message.Hello.CAP_TREE)) {
+			return false;
+		}
+		Database.Version version = db.version();
+		send(req, new Message.Tree(local, req.id, version.seqNum, version.depth, 0, version.summary(0, version.depth)));
+		return true;
+	}
+
+	/**
+	 * Returns the length of the prefix path shares with prev, leaving at least
+	 * one char and not splitting a surrogate pair.
+	 */
+	private static int commonPrefix(String prev, String path) {
+		int n = Math.min(prev.length(), path.length() - 1);
+		int i = 0;
+		while (i < n && prev.charAt(i) == path.charAt(i)) {
+			++i;
+		}
+		if (i > 0 && Character.isHighSurrogate(path.charAt(i - 1))) {
+			--i;
+		}
+		return i;
+	}
+
+
+	private boolean send(Request req, Message msg) {
+		return muxDemux.send(new Envelope(req.address, msg));
+	}
+
+	/**
+	 * Returns the cached parts of a reply with version seqNum of the
+	 * database, or null if the cache is full.
+	 */
+	private Message.List[] cached(int seqNum, int base, boolean prefixed, int total) {
+		if (seqNum != cachedSeqNum) {
+			cache.clear();
+			cachedBytes = 0;
+			cachedSeqNum = seqNum;
+		}
+		for (Reply reply : cache) {
+			if (reply.base == base && reply.prefixed == prefixed) {
+				return reply.parts;
+			}
+		}
+		if (cachedBytes + total * SLOT_BYTES > cacheBudget) {
+			return null;
+		}
+		Reply reply = new Reply(base, prefixed, total);
+		cache.add(reply);
+		cachedBytes += total * SLOT_BYTES;
+		return reply.parts;
+	}
+
+	/**
+	 * Returns part i of a reply for the peer of req: a copy of the cached one,
+	 * built and cached first if needed. Without a cache, or once it's full,
+	 * it's only built.
+	 *
+	 * Cached parts are encoded here in the format of the peer, so that the
+	 * cache is charged with their actual encoded size, and MuxDemux only
+	 * copies the encoded bytes.
+	 */
+	private Message.List part(Request req, Message.List[] cached, int i, IntFunction<Message.List> build) {
+		if (cached == null) {
+			return build.apply(i);
+		}
+		Message.List part = cached[i];
+		if (part == null) {
+			if (cachedBytes >= cacheBudget) {
+				return build.apply(i);
+			}
+			part = build.apply(i).shared();
+			cached[i] = part;
+		}
+
+		boolean binary = muxDemux.negotiated(req.address, Message.Hello.CAP_BINARY);
+		if ((binary ? part.encoded.binary : part.encoded.text) == null) {
+			encodeBuffer.clear();
+			try {
+				if (binary) {
+					codec.encodeBinary(part, encodeBuffer);
+					cachedBytes += part.encoded.binary.length;
+				} else {
+					codec.encode(part, encodeBuffer);
+					cachedBytes += part.encoded.text.length;
+				}
+			} catch (BufferOverflowException | IllegalArgumentException e) {
+				// Can't be encoded, MuxDemux reports and drops it
+			}
+		}
+		return part.to(req.id);
+	}
+
+	/**
+	 * Iterates over the parts of a reply with indices in the given ranges.
+	 */
+	private static class Parts implements Iterator<Message> {
+		private final int[] firsts;
+		private final int[] lasts;
+		private final IntFunction<Message> part;
+		private int r = 0;
+		private int i;
+
+		public Parts(int[] firsts, int[] lasts, IntFunction<Message> part) {
+			this.firsts = firsts;
+			this.lasts = lasts;
+			this.part = part;
+			this.i = firsts.length > 0 ? firsts[0] : 0;
+		}
+
+		public boolean hasNext() {
+			while (r < firsts.length && i > lasts[r]) {
+				if (++r < firsts.length) {
+					i = firsts[r];
+				}
+			}
+			return r < firsts.length;
+		}
+
+		public Message next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return part.apply(i++);
+		}
+	}
+
+	/**
+	 * Returns the parts of the changes since the version of the database
+	 * known by the peer, or null if a full transfer is needed instead.
+	 */
+	private Transfer changes(Request req, Destination dest) {
+		Database.Changes changes = db.changesSince(req.base);
+		if (changes == null || changes.size() == 0 || changes.size() >= db.entries().size()) {
+			return null;
+		}
+		Message.List[] cached = cached(changes.to, changes.from, false, changes.size());
+		Iterator<Message> parts = new Parts(new int[] {0}, new int[] {changes.size() - 1},
+				i -> part(req, cached, i, j -> change(req, changes, j)));
+		return new Transfer(req, dest, changes.to, parts);
+	}
+
+	/**
+	 * Returns the parts of the current version of the database, sorted by
+	 * path.
+	 */
+	private Transfer full(Request req, Destination dest) {
+		Database.Version version = db.version();
+		List<Database.Entry> entries = version.entries();
+		boolean prefixed = muxDemux.negotiated(req.address, Message.Hello.CAP_PREFIX);
+		Message.List[] cached = cached(version.seqNum, Message.Syn.NO_BASE, prefixed, entries.size());
+		Iterator<Database.Entry> it = entries.iterator();
+		Iterator<Message> parts = new Iterator<Message>() {
+			private int i = 0;
+			private int pos = 0; // Of the next entry of it
+			private String prev = "";
+
+			public boolean hasNext() {
+				return i < entries.size();
+			}
+
+			/**
+			 * Builds a part, iterating over the entries unless the previous
+			 * ones were cached, in which case the entry is looked up.
+			 */
+			private Message.List build(int i) {
+				if (pos != i) {
+					return row(req, version.seqNum, entries.size(), i, entries.get(i), i > 0 ? entries.get(i - 1).path : "", prefixed);
+				}
+				Database.Entry entry = it.next();
+				Message.List msg = row(req, version.seqNum, entries.size(), i, entry, prev, prefixed);
+				++pos;
+				prev = entry.path;
+				return msg;
+			}
+
+			public Message next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return part(req, cached, i++, this::build);
+			}
+		};
+		return new Transfer(req, dest, version.seqNum, parts);
+	}
+
+	/**
+	 * Returns the parts of a reply a peer asked for again, or null if they
+	 * aren't part of the current version of the database anymore.
+	 */
+	private Transfer resend(Request req, Destination dest) {
+		Message.Nack nack = req.nack;
+		int[] firsts = new int[nack.ranges()];
+		int[] lasts = new int[nack.ranges()];
+		int size;
+		IntFunction<Message> part;
+		if (nack.baseSeqNum != Message.Syn.NO_BASE) {
+			Database.Changes changes = db.changesSince(nack.baseSeqNum);
+			if (changes == null || changes.to != nack.seqNum) {
+				return null; // Outdated, the peer will ask for the new version
+			}
+			Message.List[] cached = cached(changes.to, changes.from, false, changes.size());
+			size = changes.size();
+			part = i -> part(req, cached, i, j -> change(req, changes, j));
+		} else {
+			Database.Version version = db.version();
+			if (version.seqNum != nack.seqNum) {
+				return null;
+			}
+			List<Database.Entry> entries = version.entries();
+			boolean prefixed = muxDemux.negotiated(req.address, Message.Hello.CAP_PREFIX);
+			Message.List[] cached = cached(version.seqNum, Message.Syn.NO_BASE, prefixed, entries.size());
+			size = entries.size();
+			part = i -> part(req, cached, i, j -> row(req, version.seqNum, entries.size(), j, entries.get(j), j > 0 ? entries.get(j - 1).path : "", prefixed));
+		}
+		for (int r = 0; r < nack.ranges(); ++r) {
+			firsts[r] = nack.first(r);
+			lasts[r] = Math.min(nack.last(r), size - 1);
+		}
+		return new Transfer(req, dest, nack.seqNum, new Parts(firsts, lasts, part));
+	}
+
+	/**
+	 * Returns the pacer state of a destination, and forgets those idle for a
+	 * while.
+	 */
+	private Destination destination(InetAddress address, long now) {
+		Iterator<Destination> it = destinations.values().iterator();
+		while (it.hasNext()) {
+			Destination dest = it.next();
+			if (now - dest.usedAt > IDLE_TIMEOUT && dest.transfers == 0) {
+				it.remove();
+			}
+		}
+
+		Destination dest = destinations.get(address);
+		if (dest == null) {
+			double initial = Math.min(INITIAL_RATE, rate);
+			dest = new Destination(new Pacer(initial, Math.min(MIN_RATE, initial), rate, RATE_STEP, BURST));
+			destinations.put(address, dest);
+		}
+		dest.usedAt = now;
+		return dest;
+	}
+
+	/**
+	 * Finds the transfer replying to a peer's SYN, other than NACK ones.
+	 */
+	private Transfer replying(Request req) {
+		for (Transfer t : active) {
+			if (t.req.nack == null && t.req.address.equals(req.address) && t.req.id.equals(req.id)) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts replying to a request. Loss reports slow down the pacer of the
+	 * peer: NACK messages, and SYN messages asking again for a reply which
+	 * was already sent.
+	 */
+	private void start(Request req) {
+		long now = System.nanoTime();
+		Destination dest = destination(req.address, now);
+
+		if (req.nack != null) {
+			dest.pacer.decrease(now);
+			add(resend(req, dest));
+			return;
+		}
+
+		Transfer current = replying(req);
+		if (current != null) {
+			if (current.seqNum == db.seqNum() && current.req.base == req.base) {
+				return; // Still being sent
+			}
+			remove(current);
+		} else if (req.id.equals(dest.id) && dest.seqNum == db.seqNum() && dest.base == req.base) {
+			dest.pacer.decrease(now);
+		} else if (req.id.equals(dest.id)) {
+			dest.pacer.increase(now); // The previous reply got through
+		}
+
+		if (req.base != Message.Syn.NO_BASE) {
+			Transfer changes = changes(req, dest);
+			if (changes != null) {
+				add(changes);
+				return;
+			}
+			if (sendSummary(req)) {
+				return;
+			}
+		}
+		add(full(req, dest));
+	}
+
+	private void add(Transfer t) {
+		if (t != null) {
+			active.add(t);
+			++t.dest.transfers;
+		}
+	}
+
+	private void remove(Transfer t) {
+		active.remove(t);
+		--t.dest.transfers;
+	}
+
+	/**
+	 * Sends the parts of active transfers the pacers allow, one per transfer
+	 * in turn. Returns the time until the next part can be sent, in
+	 * nanoseconds.
+	 */
+	private long pace() {
+		while (true) {
+			long now = System.nanoTime();
+			long wait = Long.MAX_VALUE;
+			boolean sent = false;
+			Iterator<Transfer> it = active.iterator();
+			while (it.hasNext()) {
+				Transfer t = it.next();
+				if (!t.parts.hasNext()) {
+					it.remove();
+					--t.dest.transfers;
+					if (t.req.nack == null) {
+						t.dest.id = t.req.id;
+						t.dest.seqNum = t.seqNum;
+						t.dest.base = t.req.base;
+					}
+					continue;
+				}
+				long delay = Math.max(t.dest.pacer.delay(now), global.delay(now));
+				if (delay > 0) {
+					wait = Math.min(wait, delay);
+					continue;
+				}
+
+				t.dest.pacer.take();
+				global.take();
+				if (!send(t.req, t.parts.next())) {
+					t.dest.pacer.decrease(now); // Dropped by a full outgoing queue
+				} else if (muxDemux.negotiated(t.req.address, Message.Hello.CAP_NACK)) {
+					t.dest.pacer.increase(now);
+				}
+				t.dest.usedAt = now;
+				sent = true;
+			}
+			if (!sent) {
+				return wait;
+			}
+		}
 	}
 
 	public void run() {
 		while (true) {
 			Request req;
 			try {
-				req = outgoing.take();
+				if (active.isEmpty()) {
+					req = outgoing.take();
+				} else {
+					req = outgoing.poll(pace(), TimeUnit.NANOSECONDS);
+				}
 			} catch (InterruptedException e) {
 				break;
 			}
 
-			// TODO: if the database is updated between those two calls, we end up in
-			// an inconsistent state
-			int seqNum = db.seqNum();
-			List<String> data = db.data();
-			for (int i = 0; i < data.size(); ++i) {
-				Message.List list = new Message.List(local, req.id, seqNum, data.size(), i, data.get(i));
-				Envelope env = new Envelope(req.address, list);
-				muxDemux.send(env);
+			if (req != null) {
+				start(req);
 			}
 		}
 	}
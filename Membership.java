@@ -0,0 +1,541 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gossip membership, replacing the periodic HELLO broadcasts of every peer
+ * with a SWIM-style failure detector, so that the cost per peer doesn't grow
+ * with the number of peers.
+ *
+ * Each protocol period (the HELLO interval), we ping one member, going
+ * through all of them in a random order. If it doesn't answer within a third
+ * of the period, we ask a few other members to ping it for us. If nobody got
+ * an answer by the end of the period, the member is suspected. Suspected
+ * members which don't refute it (by incrementing their incarnation) are
+ * declared dead after a timeout growing with log(members).
+ *
+ * Membership updates (a member joining, being suspected, dead, or having a new
+ * database sequence number) are piggybacked on GOSSIP messages, each of them
+ * a bounded number of times. A joining peer broadcasts a HELLO, to which a
+ * few members chosen at random reply with the membership list. Once it knows
+ * of a member, or after a few HELLO messages if nobody answers (it may be the
+ * first peer), HELLO messages are only broadcast once in a while, to heal
+ * partitions.
+ *
+ * Members are fed into the peer table (which doesn't expire them in this mode)
+ * as HELLO messages would, and dead ones are removed from it.
+ */
+class Membership implements MessageHandler, PeerListener, Runnable {
+	private static final int PIGGYBACK = 6;
+	private static final int MEMBERS_PER_MESSAGE = 16;
+	private static final int INDIRECT_PROBES = 3;
+	private static final int SUSPICION_MULTIPLIER = 4;
+	private static final int RETRANSMIT_MULTIPLIER = 3;
+	private static final int JOIN_REPLIES = 3;
+	private static final int JOIN_HELLOS = 3;
+	private static final int HELLO_PERIODS = 30;
+	private static final int DEAD_RETENTION_PERIODS = 60;
+
+	private MuxDemux muxDemux;
+	private PeerTable peerTable;
+	private Database db;
+	private String local;
+	private int interval;
+
+	private final Random random = new Random();
+
+	// Incarnations start from the current time, so that a restarted peer
+	// overrides what others remember about its previous run
+	private long incarnation = System.currentTimeMillis() / 1000;
+	private int announcedSeqNum;
+	private boolean joined = false;
+	private int joinHellos = 0;
+
+	private BlockingQueue<Envelope> incoming = new ArrayBlockingQueue<>(256);
+	private Queue<PeerTable.Event> events = new ConcurrentLinkedQueue<>();
+	private volatile Executor executor = null;
+
+	// Guarded by this
+	private Map<String, Member> members = new HashMap<>();
+	private Map<String, Integer> updates = new HashMap<>();
+	private List<String> probeOrder = new ArrayList<>();
+	private int probeIndex = 0;
+	private Probe probe = null;
+	private Map<Integer, Relay> relays = new HashMap<>();
+	private long period = 0;
+	private long lastHello = Long.MIN_VALUE;
+	private int phase = 0;
+
+	/**
+	 * What we know about a member. since is the period its status changed.
+	 */
+	private static class Member {
+		public final String id;
+		public InetAddress address;
+		public int seqNum;
+		public long incarnation;
+		public char status;
+		public long since;
+
+		public Member(String id) {
+			this.id = id;
+		}
+
+		public Message.Gossip.Member toMessage() {
+			return new Message.Gossip.Member(id, address, seqNum, incarnation, status);
+		}
+	}
+
+	/**
+	 * The member we're probing in the current period.
+	 */
+	private static class Probe {
+		public final String target;
+		public final int nonce;
+		public boolean acked = false;
+
+		public Probe(String target, int nonce) {
+			this.target = target;
+			this.nonce = nonce;
+		}
+	}
+
+	/**
+	 * A PING sent on behalf of another member, whose ACK must be forwarded.
+	 */
+	private static class Relay {
+		public final InetAddress address;
+		public final int nonce;
+		public final String target;
+		public final long period;
+
+		public Relay(InetAddress address, int nonce, String target, long period) {
+			this.address = address;
+			this.nonce = nonce;
+			this.target = target;
+			this.period = period;
+		}
+	}
+
+	public Membership(MuxDemux muxDemux, PeerTable peerTable, Database db, String local, int interval) {
+		this.muxDemux = muxDemux;
+		this.peerTable = peerTable;
+		this.db = db;
+		this.local = local;
+		this.interval = interval;
+		this.announcedSeqNum = db.seqNum();
+	}
+
+	public void handleMessage(Envelope env) {
+		incoming.offer(env);
+		Executor executor = this.executor;
+		if (executor != null) {
+			executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * Handles messages on executor as they arrive, instead of in run(). tick()
+	 * must then be called every third of the HELLO interval.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Handles the messages received so far.
+	 */
+	public synchronized void drain() {
+		Envelope env;
+		while ((env = incoming.poll()) != null) {
+			handle(env);
+		}
+	}
+
+	private void handle(Envelope env) {
+		try {
+			if (env.msg instanceof Message.Hello) {
+				Message.Hello hello = (Message.Hello)env.msg;
+				if (!local.equals(hello.sender)) {
+					receive(env, hello);
+				}
+			} else {
+				Message.Gossip gossip = (Message.Gossip)env.msg;
+				if (!local.equals(gossip.sender)) {
+					receive(env, gossip);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void peerChanged(PeerTable.Event event) {
+		if (event.type == PeerTable.Event.Type.ADDED || event.state == PeerTable.State.DYING) {
+			events.offer(event);
+		}
+	}
+
+	/**
+	 * Returns ceil(log2(n + 1)), the number of rounds for a piece of gossip to
+	 * reach n members.
+	 */
+	private static int rounds(int n) {
+		return 32 - Integer.numberOfLeadingZeros(n);
+	}
+
+	private int retransmits() {
+		return RETRANSMIT_MULTIPLIER * Math.max(1, rounds(members.size()));
+	}
+
+	private int suspicionPeriods() {
+		return SUSPICION_MULTIPLIER * Math.max(1, rounds(members.size()));
+	}
+
+	private void send(InetAddress address, String to, char kind, int nonce, String target) {
+		Message.Gossip gossip = new Message.Gossip(local, db.seqNum(), incarnation, kind, nonce, target);
+		piggyback(gossip, to);
+		muxDemux.send(new Envelope(address, gossip));
+	}
+
+	/**
+	 * Adds the membership updates which have been sent the least. If the
+	 * destination is suspected or dead, it's told first so that it can refute
+	 * it.
+	 */
+	private void piggyback(Message.Gossip gossip, String to) {
+		Member dest = members.get(to);
+		if (dest != null && dest.status != Message.Gossip.Member.ALIVE) {
+			gossip.addMember(dest.toMessage());
+		}
+
+		List<Map.Entry<String, Integer>> pending = new ArrayList<>(updates.entrySet());
+		pending.sort(Comparator.comparing(Map.Entry::getValue));
+		int limit = retransmits();
+		for (Map.Entry<String, Integer> u : pending) {
+			if (gossip.members().size() >= PIGGYBACK) {
+				break;
+			}
+			Member m = members.get(u.getKey());
+			if (m == null) {
+				updates.remove(u.getKey());
+				continue;
+			}
+			if (m == dest) {
+				continue;
+			}
+			gossip.addMember(m.toMessage());
+			if (u.getValue() + 1 >= limit) {
+				updates.remove(m.id);
+			} else {
+				updates.put(m.id, u.getValue() + 1);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether an update about a member overrides what we know.
+	 */
+	private static boolean overrides(Message.Gossip.Member u, Member m) {
+		switch (u.status) {
+		case Message.Gossip.Member.ALIVE:
+			return u.incarnation > m.incarnation ||
+				(u.incarnation == m.incarnation && m.status == Message.Gossip.Member.ALIVE && u.seqNum > m.seqNum);
+		case Message.Gossip.Member.SUSPECT:
+			if (m.status == Message.Gossip.Member.ALIVE) {
+				return u.incarnation >= m.incarnation;
+			}
+			return u.incarnation > m.incarnation;
+		default:
+			return m.status != Message.Gossip.Member.DEAD && u.incarnation >= m.incarnation;
+		}
+	}
+
+	/**
+	 * Applies a membership update, and passes it on if it's news.
+	 */
+	private void apply(Message.Gossip.Member u) {
+		if (u.id.equals(local)) {
+			if (u.status != Message.Gossip.Member.ALIVE && u.incarnation >= incarnation) {
+				incarnation = u.incarnation + 1; // Refute it in our next messages
+			}
+			return;
+		}
+
+		Member m = members.get(u.id);
+		if (m == null) {
+			if (u.status == Message.Gossip.Member.DEAD) {
+				return;
+			}
+			m = new Member(u.id);
+			members.put(u.id, m);
+		} else if (!overrides(u, m)) {
+			return;
+		}
+
+		if (m.status != u.status) {
+			m.since = period;
+		}
+		m.address = u.address;
+		m.seqNum = u.seqNum;
+		m.incarnation = u.incarnation;
+		m.status = u.status;
+		updates.put(m.id, 0);
+
+		if (m.status == Message.Gossip.Member.DEAD) {
+			peerTable.remove(m.id);
+			return;
+		}
+		try {
+			peerTable.update(m.id, m.address, m.seqNum);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Ignoring membership update about "+m.id+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Marks a member as alive after hearing from it directly, without
+	 * knowing its incarnation. Others will learn it from its own messages.
+	 */
+	private Member heard(String id, InetAddress address, int seqNum) {
+		Member m = members.get(id);
+		if (m == null) {
+			m = new Member(id);
+			members.put(id, m);
+		} else if (m.status == Message.Gossip.Member.ALIVE) {
+			return m;
+		}
+		m.address = address;
+		m.seqNum = seqNum;
+		m.status = Message.Gossip.Member.ALIVE;
+		m.since = period;
+		return m;
+	}
+
+	private void suspect(String id) {
+		Member m = members.get(id);
+		if (m != null && m.status == Message.Gossip.Member.ALIVE) {
+			m.status = Message.Gossip.Member.SUSPECT;
+			m.since = period;
+			updates.put(id, 0);
+		}
+	}
+
+	private void declareDead(Member m) {
+		m.status = Message.Gossip.Member.DEAD;
+		m.since = period;
+		updates.put(m.id, 0);
+		peerTable.remove(m.id);
+	}
+
+	/**
+	 * Returns up to n random live members, other than exclude.
+	 */
+	private List<Member> randomMembers(int n, String exclude) {
+		List<Member> alive = new ArrayList<>();
+		for (Member m : members.values()) {
+			if (m.status == Message.Gossip.Member.ALIVE && !m.id.equals(exclude)) {
+				alive.add(m);
+			}
+		}
+		Collections.shuffle(alive, random);
+		return alive.subList(0, Math.min(n, alive.size()));
+	}
+
+	/**
+	 * Sends the membership list to a joining peer.
+	 */
+	private void sendMembers(InetAddress address) {
+		Message.Gossip gossip = new Message.Gossip(local, db.seqNum(), incarnation, Message.Gossip.MEMBERS, 0, null);
+		for (Member m : members.values()) {
+			if (m.status == Message.Gossip.Member.DEAD || m.address.equals(address)) {
+				continue;
+			}
+			if (gossip.members().size() == MEMBERS_PER_MESSAGE) {
+				muxDemux.send(new Envelope(address, gossip));
+				gossip = new Message.Gossip(local, db.seqNum(), incarnation, Message.Gossip.MEMBERS, 0, null);
+			}
+			gossip.addMember(m.toMessage());
+		}
+		muxDemux.send(new Envelope(address, gossip));
+	}
+
+	private void receive(Envelope env, Message.Hello hello) {
+		Member m = members.get(hello.sender);
+		boolean joining = m == null || m.status == Message.Gossip.Member.DEAD;
+		heard(hello.sender, env.address, hello.seqNum);
+
+		// Only a few members reply to a joining peer
+		int n = Math.max(1, members.size());
+		if (joining && random.nextInt(n) < JOIN_REPLIES) {
+			sendMembers(env.address);
+		}
+	}
+
+	private void receive(Envelope env, Message.Gossip gossip) {
+		heard(gossip.sender, env.address, gossip.seqNum);
+		apply(new Message.Gossip.Member(gossip.sender, env.address, gossip.seqNum, gossip.incarnation,
+			Message.Gossip.Member.ALIVE));
+		for (Message.Gossip.Member u : gossip.members()) {
+			apply(u);
+		}
+
+		switch (gossip.kind) {
+		case Message.Gossip.PING:
+			send(env.address, gossip.sender, Message.Gossip.ACK, gossip.nonce, null);
+			break;
+		case Message.Gossip.PING_REQ:
+			Member target = members.get(gossip.target);
+			if (target != null && target.status != Message.Gossip.Member.DEAD) {
+				int nonce = random.nextInt();
+				relays.put(nonce, new Relay(env.address, gossip.nonce, gossip.target, period));
+				send(target.address, target.id, Message.Gossip.PING, nonce, null);
+			}
+			break;
+		case Message.Gossip.ACK:
+			if (probe != null && probe.nonce == gossip.nonce) {
+				probe.acked = true;
+				break;
+			}
+			Relay r = relays.remove(gossip.nonce);
+			if (r != null) {
+				send(r.address, null, Message.Gossip.ACK, r.nonce, r.target);
+			}
+			break;
+		case Message.Gossip.MEMBERS:
+			joined = true;
+			break;
+		}
+	}
+
+	/**
+	 * Handles changes in the peer table: peers heard from by other means and
+	 * dying peers.
+	 */
+	private void handleEvents() {
+		PeerTable.Event e;
+		while ((e = events.poll()) != null) {
+			if (e.state == PeerTable.State.DYING) {
+				Member m = members.get(e.record.id);
+				if (m != null && m.status != Message.Gossip.Member.DEAD) {
+					declareDead(m);
+				}
+			} else if (!members.containsKey(e.record.id)) {
+				heard(e.record.id, e.record.address, e.record.pendingSeqNum());
+			}
+		}
+	}
+
+	/**
+	 * Starts probing the next member.
+	 */
+	private void startProbe() {
+		for (int pass = 0; pass < 2; ++pass) {
+			while (probeIndex < probeOrder.size()) {
+				Member m = members.get(probeOrder.get(probeIndex++));
+				if (m != null && m.status != Message.Gossip.Member.DEAD) {
+					probe = new Probe(m.id, random.nextInt());
+					send(m.address, m.id, Message.Gossip.PING, probe.nonce, null);
+					return;
+				}
+			}
+
+			// Went through all members, start over in a new random order
+			probeOrder = new ArrayList<>(members.keySet());
+			Collections.shuffle(probeOrder, random);
+			probeIndex = 0;
+		}
+	}
+
+	/**
+	 * Runs a third of a protocol period.
+	 */
+	public synchronized void tick() {
+		handleEvents();
+
+		// Announce database changes right away
+		int seqNum = db.seqNum();
+		if (seqNum != announcedSeqNum) {
+			announcedSeqNum = seqNum;
+			for (Member m : randomMembers(INDIRECT_PROBES, null)) {
+				send(m.address, m.id, Message.Gossip.PING, random.nextInt(), null);
+			}
+		}
+
+		if (phase == 1) {
+			// No direct answer, probe indirectly
+			if (probe != null && !probe.acked) {
+				for (Member m : randomMembers(INDIRECT_PROBES, probe.target)) {
+					send(m.address, m.id, Message.Gossip.PING_REQ, probe.nonce, probe.target);
+				}
+			}
+		} else if (phase == 0) {
+			++period;
+			if (probe != null && !probe.acked) {
+				suspect(probe.target);
+			}
+			probe = null;
+
+			List<String> forgotten = new ArrayList<>();
+			for (Member m : members.values()) {
+				if (m.status == Message.Gossip.Member.SUSPECT && period - m.since >= suspicionPeriods()) {
+					declareDead(m);
+				} else if (m.status == Message.Gossip.Member.DEAD && period - m.since >= DEAD_RETENTION_PERIODS) {
+					forgotten.add(m.id);
+				}
+			}
+			for (String id : forgotten) {
+				members.remove(id);
+				updates.remove(id);
+			}
+			relays.values().removeIf(r -> r.period < period - 1);
+
+			if (!joined && (joinHellos >= JOIN_HELLOS || !randomMembers(1, null).isEmpty())) {
+				joined = true;
+			}
+			// About one healing HELLO per period in the whole cluster
+			if (!joined || period - lastHello >= Math.max(HELLO_PERIODS, members.size())) {
+				lastHello = period;
+				if (!joined) {
+					++joinHellos;
+				}
+				muxDemux.broadcast(new Message.Hello(local, seqNum, interval, muxDemux.capabilities()));
+			}
+
+			startProbe();
+		}
+		phase = (phase + 1) % 3;
+	}
+
+	public void run() {
+		long tickInterval = TimeUnit.SECONDS.toNanos(interval) / 3;
+		long nextTick = System.nanoTime();
+		while (true) {
+			Envelope env;
+			try {
+				env = incoming.poll(Math.max(0, nextTick - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (env != null) {
+				handle(env);
+			}
+			if (System.nanoTime() - nextTick >= 0) {
+				tick();
+				nextTick = System.nanoTime() + tickInterval;
+			}
+		}
+	}
+}
@@ -1,42 +1,80 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
+import java.util.Collections;
 
 abstract class Message {
-	private static final Pattern idPattern = Pattern.compile("^[a-zA-Z0-9]{0,16}$");
+	static final int MAX_ID_LENGTH = 16;
 
 	private static final String HELLO = "HELLO";
 	private static final String SYN = "SYN";
 	private static final String LIST = "LIST";
 	private static final String DYING = "DYING";
+	private static final String TREE = "TREE";
+	private static final String GOSSIP = "GOSSIP";
+	private static final String NACK = "NACK";
+
+	/**
+	 * Message types, used to dispatch received messages.
+	 */
+	enum Type {HELLO, SYN, LIST, DYING, TREE, GOSSIP, NACK}
+
+	abstract public Type type();
 
 	abstract public String format();
 
+	/**
+	 * Parses a message. Hot paths should use a MessageCodec directly on the
+	 * received bytes instead.
+	 */
 	public static Message parse(String raw) {
-		String[] parts = raw.split(";");
-
-		String type = parts[0];
-		switch (type) {
-		case HELLO:
-			return new Hello(parts);
-		case SYN:
-			return new Syn(parts);
-		case LIST:
-			return new List(parts);
-		case DYING:
-			return new Dying(parts);
-		default:
-			throw new IllegalArgumentException("unknown message type: "+type);
+		return new MessageCodec().decode(ByteBuffer.wrap(raw.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	static boolean validIdChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
+	/**
+	 * Checks that an ID matches [a-zA-Z0-9]{0,16}.
+	 */
+	static boolean validId(String id) {
+		if (id.length() > MAX_ID_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < id.length(); ++i) {
+			if (!validIdChar(id.charAt(i))) {
+				return false;
+			}
 		}
+		return true;
 	}
 
 	public static class Hello extends Message {
+		/**
+		 * Capability bits, advertised to let peers switch to protocol
+		 * extensions.
+		 */
+		public static final int CAP_BATCH = 1 << 0;
+		public static final int CAP_BINARY = 1 << 1;
+		public static final int CAP_FRAGMENT = 1 << 2;
+		public static final int CAP_TREE = 1 << 3;
+		public static final int CAP_PREFIX = 1 << 4;
+		public static final int CAP_NACK = 1 << 5;
+
 		public final String sender;
 		public final int seqNum;
 		public final int helloInterval;
+		public final int capabilities;
 		private final java.util.List<String> peers = new ArrayList<>();
 
 		public Hello(String sender, int seqNum, int helloInterval) {
-			if (!idPattern.matcher(sender).matches()) {
+			this(sender, seqNum, helloInterval, 0);
+		}
+
+		public Hello(String sender, int seqNum, int helloInterval, int capabilities) {
+			if (!validId(sender)) {
 				throw new IllegalArgumentException("invalid sender ID");
 			}
 			if (helloInterval < 0 || helloInterval > 255) {
@@ -46,74 +84,39 @@ abstract class Message {
 			this.sender = sender;
 			this.seqNum = seqNum;
 			this.helloInterval = helloInterval;
-		}
-
-		public Hello(String[] parts) {
-			// Let's be conservative in what we accept, because we want to spot
-			// implementation mistakes.
-
-			if (parts.length < 5) {
-				throw new IllegalArgumentException("wrong number of fields");
-			}
-			if (!HELLO.equals(parts[0])) {
-				throw new IllegalArgumentException("not a HELLO message");
-			}
-
-			this.sender = parts[1];
-			if (!idPattern.matcher(this.sender).matches()) {
-				throw new IllegalArgumentException("invalid sender ID");
-			}
-
-			try {
-				this.seqNum = Integer.parseInt(parts[2]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid sequence number: "+e.getMessage());
-			}
-
-			try {
-				this.helloInterval = Integer.parseInt(parts[3]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid HELLO interval: "+e.getMessage());
-			}
-			if (this.helloInterval < 0 || this.helloInterval > 255) {
-				throw new IllegalArgumentException("invalid HELLO interval: not in range");
-			}
-
-			int peersLen;
-			try {
-				peersLen = Integer.parseInt(parts[4]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid number of peers: "+e.getMessage());
-			}
-			if (peersLen < 0 || peersLen > 255) {
-				throw new IllegalArgumentException("invalid number of peers: not in range");
-			}
-			if (peersLen != parts.length - 5) {
-				throw new IllegalArgumentException("invalid number of peers: mismatched");
-			}
-
-			for (int i = 5; i < parts.length; ++i) {
-				this.addPeer(parts[i]);
-			}
+			this.capabilities = capabilities;
 		}
 
 		public String toString() {
 			return "HELLO{sender="+this.sender+" seqNum="+this.seqNum+
 				" helloInterval="+this.helloInterval+
+				" capabilities="+this.capabilities+
 				" peers="+this.peers.toString()+"}";
 		}
 
+		@Override
+		public Type type() {
+			return Type.HELLO;
+		}
+
 		public String format() {
 			StringBuilder sb = new StringBuilder(HELLO+";"+this.sender+";"+
 				this.seqNum+";"+this.helloInterval+";"+this.peers.size());
 			for (String peer : this.peers) {
 				sb.append(";"+peer);
 			}
+			if (this.capabilities != 0) {
+				sb.append(";"+this.capabilities);
+			}
 			return sb.toString();
 		}
 
+		public java.util.List<String> peers() {
+			return Collections.unmodifiableList(peers);
+		}
+
 		public void addPeer(String peer) {
-			if (!idPattern.matcher(peer).matches()) {
+			if (!validId(peer)) {
 				throw new IllegalArgumentException("invalid peer ID");
 			}
 			this.peers.add(peer);
@@ -121,62 +124,88 @@ abstract class Message {
 	}
 
 	public static class Syn extends Message {
+		/**
+		 * Base sequence number of a SYN asking for the full database.
+		 */
+		public static final int NO_BASE = Integer.MIN_VALUE;
+
 		public final String sender;
 		public final String peer;
 		public final int seqNum;
 
+		/**
+		 * Optional sequence number of the peer's database already known by the
+		 * sender, which then only needs the changes since that version.
+		 */
+		public final int baseSeqNum;
+
 		public Syn(String sender, String peer, int seqNum) {
-			if (!idPattern.matcher(sender).matches()) {
+			this(sender, peer, seqNum, NO_BASE);
+		}
+
+		public Syn(String sender, String peer, int seqNum, int baseSeqNum) {
+			if (!validId(sender)) {
 				throw new IllegalArgumentException("invalid sender ID");
 			}
-			if (!idPattern.matcher(peer).matches()) {
+			if (!validId(peer)) {
 				throw new IllegalArgumentException("invalid peer ID");
 			}
 
 			this.sender = sender;
 			this.peer = peer;
 			this.seqNum = seqNum;
+			this.baseSeqNum = baseSeqNum;
 		}
 
-		public Syn(String[] parts) {
-			if (parts.length < 4) {
-				throw new IllegalArgumentException("wrong number of fields");
-			}
-
-			if (!SYN.equals(parts[0])) {
-				throw new IllegalArgumentException("not a SYN message");
-			}
-
-			this.sender = parts[1];
-			if (!idPattern.matcher(this.sender).matches()) {
-				throw new IllegalArgumentException("invalid sender ID");
-			}
-
-			this.peer = parts[2];
-			if (!idPattern.matcher(this.peer).matches()) {
-				throw new IllegalArgumentException("invalid peer ID");
-			}
-
-			try {
-				this.seqNum = Integer.parseInt(parts[3]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid sequence number: "+e.getMessage());
-			}
+		@Override
+		public Type type() {
+			return Type.SYN;
 		}
 
 		@Override
 		public String format() {
-			return SYN+";"+this.sender+";"+ this.peer+";"+String.valueOf(this.seqNum)+";";
+			String s = SYN+";"+this.sender+";"+ this.peer+";"+String.valueOf(this.seqNum)+";";
+			if (this.baseSeqNum != NO_BASE) {
+				s += this.baseSeqNum+";";
+			}
+			return s;
 		}
 
 		public String toString() {
-			return "SYN{sender="+this.sender+
+			String s = "SYN{sender="+this.sender+
 					" peer="+this.peer+
-					" seqNum="+this.seqNum+"}";
+					" seqNum="+this.seqNum;
+			if (this.baseSeqNum != NO_BASE) {
+				s += " baseSeqNum="+this.baseSeqNum;
+			}
+			return s+"}";
 		}
 	}
 
+	/**
+	 * Checks that a digest is an even number of lower-case hex digits, at most
+	 * MAX_DIGEST_LENGTH.
+	 */
+	static boolean validDigest(String digest) {
+		if (digest.length() > List.MAX_DIGEST_LENGTH || digest.length() % 2 != 0) {
+			return false;
+		}
+		for (int i = 0; i < digest.length(); ++i) {
+			char c = digest.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static class List extends Message {
+		/**
+		 * Maximum data length. The text format is further limited to 255 chars.
+		 */
+		public static final int MAX_DATA_LENGTH = 4096;
+		public static final int MAX_DIGEST_LENGTH = 128;
+
 		public final String sender;
 		public final String peer;
 		public final int seqNum;
@@ -184,17 +213,73 @@ abstract class Message {
 		public final int partNum;
 		public final String data;
 
+		/**
+		 * Optional file metadata, appended after data. If digest is null, the
+		 * peer didn't send any metadata and size and mtime are
+		 * Database.Entry.UNKNOWN.
+		 */
+		public final long size;
+		public final long mtime;
+		public final String digest;
+
+		/**
+		 * Change operations. In replies to a SYN with a base sequence number,
+		 * the LIST messages only carry the changes since that version: each of
+		 * them is an entry either updated or removed. In replies to a TREE
+		 * request for a bucket, they carry the entries of the bucket, and
+		 * baseSeqNum is the bucket index. In a full database sent to a peer
+		 * supporting it, a row may be PREFIXED: its data only holds the end of
+		 * the path, and baseSeqNum is the length of the prefix it shares with
+		 * the path of the previous row. Otherwise op is NONE and baseSeqNum is
+		 * Syn.NO_BASE.
+		 */
+		public static final char NONE = 0;
+		public static final char UPDATED = '+';
+		public static final char REMOVED = '-';
+		public static final char BUCKET = '=';
+		public static final char PREFIXED = '^';
+
+		public final int baseSeqNum;
+		public final char op;
+
+		/**
+		 * The encoded fields following the peer ID, in the text and binary
+		 * formats, kept once computed by a codec. Copies of a message for
+		 * other peers share them, so that they are only encoded once.
+		 */
+		static class Encoded {
+			volatile byte[] text = null;
+			volatile byte[] binary = null;
+		}
+
+		/**
+		 * Null unless the encoded form is kept, see shared().
+		 */
+		final Encoded encoded;
+
 		public List(String sender, String peer, int seqNum, int totalParts, int partNum, String data) {
-			if (!idPattern.matcher(sender).matches()) {
+			this(sender, peer, seqNum, totalParts, partNum, data, Database.Entry.UNKNOWN, Database.Entry.UNKNOWN, null, Syn.NO_BASE, NONE);
+		}
+
+		public List(String sender, String peer, int seqNum, int totalParts, int partNum, Database.Entry entry) {
+			this(sender, peer, seqNum, totalParts, partNum, entry, Syn.NO_BASE, NONE);
+		}
+
+		public List(String sender, String peer, int seqNum, int totalParts, int partNum, Database.Entry entry, int baseSeqNum, char op) {
+			this(sender, peer, seqNum, totalParts, partNum, entry.path, entry.size, entry.mtime, entry.digest, baseSeqNum, op);
+		}
+
+		public List(String sender, String peer, int seqNum, int totalParts, int partNum, String data, long size, long mtime, String digest, int baseSeqNum, char op) {
+			if (!validId(sender)) {
 				throw new IllegalArgumentException("invalid sender ID");
 			}
 
-			if (!idPattern.matcher(peer).matches()) {
+			if (!validId(peer)) {
 				throw new IllegalArgumentException("invalid peer ID");
 			}
 
-			if (data.length() > 255) {
-				throw new IllegalArgumentException("invalid data size (more than 255 chars)");
+			if (data.length() > MAX_DATA_LENGTH) {
+				throw new IllegalArgumentException("invalid data size (more than "+MAX_DATA_LENGTH+" chars)");
 			}
 
 			if (totalParts <= 0) {
@@ -205,106 +290,472 @@ abstract class Message {
 				throw new IllegalArgumentException("invalid part number");
 			}
 
+			if (digest != null && (size < 0 || mtime < 0 || !validDigest(digest))) {
+				throw new IllegalArgumentException("invalid file metadata");
+			}
+
+			if ((op == NONE) != (baseSeqNum == Syn.NO_BASE)) {
+				throw new IllegalArgumentException("invalid change operation");
+			}
+			if (op != NONE && op != UPDATED && op != REMOVED && op != BUCKET && op != PREFIXED) {
+				throw new IllegalArgumentException("invalid change operation: "+op);
+			}
+			if (op == PREFIXED && (baseSeqNum <= 0 || baseSeqNum > MAX_DATA_LENGTH)) {
+				throw new IllegalArgumentException("invalid path prefix length");
+			}
+
 			this.sender = sender;
 			this.peer = peer;
 			this.seqNum = seqNum;
 			this.totalParts = totalParts;
 			this.partNum = partNum;
 			this.data = data;
+			this.size = size;
+			this.mtime = mtime;
+			this.digest = digest;
+			this.baseSeqNum = baseSeqNum;
+			this.op = op;
+			this.encoded = null;
 		}
 
-		public List(String[] parts) {
-			if (parts.length < 7) {
-				throw new IllegalArgumentException("wrong number of fields");
+		private List(List list, String peer, Encoded encoded) {
+			if (!validId(peer)) {
+				throw new IllegalArgumentException("invalid peer ID");
 			}
-			if (!LIST.equals(parts[0])) {
-				throw new IllegalArgumentException("not a LIST message");
+
+			this.sender = list.sender;
+			this.peer = peer;
+			this.seqNum = list.seqNum;
+			this.totalParts = list.totalParts;
+			this.partNum = list.partNum;
+			this.data = list.data;
+			this.size = list.size;
+			this.mtime = list.mtime;
+			this.digest = list.digest;
+			this.baseSeqNum = list.baseSeqNum;
+			this.op = list.op;
+			this.encoded = encoded;
+		}
+
+		/**
+		 * Returns a copy of this message which keeps its encoded form, to be
+		 * sent to several peers with to().
+		 */
+		public List shared() {
+			return new List(this, peer, new Encoded());
+		}
+
+		/**
+		 * Returns a copy of this message for another peer, sharing the encoded
+		 * form of the other fields if this message keeps it.
+		 */
+		public List to(String peer) {
+			if (peer.equals(this.peer)) {
+				return this;
 			}
+			return new List(this, peer, encoded);
+		}
 
-			this.sender = parts[1];
-			if (!idPattern.matcher(this.sender).matches()) {
-				throw new IllegalArgumentException("invalid sender ID");
+		/**
+		 * Checks whether this message carries an operation and baseSeqNum.
+		 */
+		public boolean delta() {
+			return op != NONE;
+		}
+
+		/**
+		 * Returns the length of the prefix this row's path shares with the
+		 * previous row's, which isn't included in data.
+		 */
+		public int prefix() {
+			return op == PREFIXED ? baseSeqNum : 0;
+		}
+
+		/**
+		 * Returns the database entry carried by this message.
+		 */
+		public Database.Entry entry() {
+			if (digest == null) {
+				return new Database.Entry(data);
 			}
+			return new Database.Entry(data, size, mtime, digest);
+		}
 
-			this.peer = parts[2];
-			if (!idPattern.matcher(this.peer).matches()) {
-				throw new IllegalArgumentException("invalid peer ID");
+		@Override
+		public Type type() {
+			return Type.LIST;
+		}
+
+		@Override
+		public String format() {
+			String s = LIST+";"+this.sender+";"+ this.peer+";"+String.valueOf(this.seqNum)+";"+
+					String.valueOf(this.totalParts)+";"+
+					String.valueOf(this.partNum)+";"+
+					this.data+";";
+			if (this.digest != null) {
+				s += this.size+";"+this.mtime+";"+this.digest+";";
+			} else if (delta()) {
+				s += ";;;";
 			}
+			if (delta()) {
+				s += this.baseSeqNum+";"+this.op+";";
+			}
+			return s;
+		}
 
-			try {
-				this.seqNum = Integer.parseInt(parts[3]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid sequence number: "+e.getMessage());
+		public String toString() {
+			String s = "LIST{sender="+this.sender+
+					" peer="+this.peer+
+					" seqNum="+String.valueOf(this.seqNum)+
+					" totalParts="+String.valueOf(this.totalParts)+
+					" partNum="+String.valueOf(this.partNum)+
+					" data="+this.data;
+			if (this.digest != null) {
+				s += " size="+this.size+" mtime="+this.mtime+" digest="+this.digest;
+			}
+			if (delta()) {
+				s += " baseSeqNum="+this.baseSeqNum+" op="+this.op;
 			}
+			return s+"}";
+		}
+	}
+
+	/**
+	 * A summary tree request or reply. A request (without hashes) asks peer
+	 * for the children of a node of its database's summary tree at version
+	 * seqNum; if the node is a bucket, the reply is the bucket's entries as
+	 * LIST messages. A reply carries the hashes of the node's children. The
+	 * depth of the tree is set by the peer's reply about the root, and only
+	 * sent when it's not Database.MIN_DEPTH.
+	 */
+	public static class Tree extends Message {
+		public final String sender;
+		public final String peer;
+		public final int seqNum;
+		public final int depth;
+		public final int node;
+		private final long[] hashes;
 
-			try {
-				this.totalParts = Integer.parseInt(parts[4]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid total parts number: "+e.getMessage());
+		public Tree(String sender, String peer, int seqNum, int depth, int node) {
+			this(sender, peer, seqNum, depth, node, null);
+		}
+
+		public Tree(String sender, String peer, int seqNum, int depth, int node, long[] hashes) {
+			if (!validId(sender)) {
+				throw new IllegalArgumentException("invalid sender ID");
+			}
+			if (!validId(peer)) {
+				throw new IllegalArgumentException("invalid peer ID");
+			}
+			if (depth < Database.MIN_DEPTH || depth > Database.MAX_DEPTH) {
+				throw new IllegalArgumentException("invalid depth: not in range");
+			}
+			if (node < 0 || node >= Database.firstNode(depth + 1)) {
+				throw new IllegalArgumentException("invalid node: not in range");
+			}
+			if (hashes != null && (hashes.length != Database.FANOUT || node >= Database.firstNode(depth))) {
+				throw new IllegalArgumentException("invalid node hashes");
 			}
 
-			if (totalParts <= 0) {
-				throw new IllegalArgumentException("invalid total parts number (isn't positive)");
+			this.sender = sender;
+			this.peer = peer;
+			this.seqNum = seqNum;
+			this.depth = depth;
+			this.node = node;
+			this.hashes = hashes;
+		}
+
+		/**
+		 * Returns the bucket of the node, or -1 if it's an internal node.
+		 */
+		public int bucket() {
+			int first = Database.firstNode(depth);
+			return node >= first ? node - first : -1;
+		}
+
+		public boolean request() {
+			return hashes == null;
+		}
+
+		/**
+		 * Returns the hash of a child of the node. Only valid for replies.
+		 */
+		public long hash(int child) {
+			return hashes[child];
+		}
+
+		@Override
+		public Type type() {
+			return Type.TREE;
+		}
+
+		@Override
+		public String format() {
+			StringBuilder sb = new StringBuilder(TREE+";"+this.sender+";"+this.peer+";"+
+				this.seqNum+";"+this.node+";");
+			if (hashes != null) {
+				for (long h : hashes) {
+					sb.append(Long.toHexString(h)+";");
+				}
+			}
+			if (depth != Database.MIN_DEPTH) {
+				sb.append(depth+";");
 			}
+			return sb.toString();
+		}
+
+		public String toString() {
+			String s = "TREE{sender="+this.sender+
+					" peer="+this.peer+
+					" seqNum="+this.seqNum+
+					" depth="+this.depth+
+					" node="+this.node;
+			if (hashes != null) {
+				s += " hashes=[";
+				for (int i = 0; i < hashes.length; ++i) {
+					s += (i > 0 ? " " : "")+Long.toHexString(hashes[i]);
+				}
+				s += "]";
+			}
+			return s+"}";
+		}
+	}
 
-			try {
-				this.partNum = Integer.parseInt(parts[5]);
-			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("invalid part number: "+e.getMessage());
+	/**
+	 * A gossip membership message (see Membership). A PING must be answered
+	 * with an ACK carrying the same nonce; a PING_REQ asks to ping target on
+	 * the sender's behalf, and to forward the ACK with the sender's nonce.
+	 * MEMBERS messages send the membership list to a joining peer. All of them
+	 * carry the sender's database sequence number and incarnation, and
+	 * membership updates about other peers.
+	 */
+	public static class Gossip extends Message {
+		public static final char PING = 'P';
+		public static final char ACK = 'A';
+		public static final char PING_REQ = 'R';
+		public static final char MEMBERS = 'M';
+
+		public static final int MAX_MEMBERS = 32;
+
+		/**
+		 * What the sender knows about a peer: its address, database sequence
+		 * number, and status at a given incarnation. Peers increment their
+		 * incarnation to refute being suspected.
+		 */
+		public static class Member {
+			public static final char ALIVE = 'A';
+			public static final char SUSPECT = 'S';
+			public static final char DEAD = 'D';
+
+			public final String id;
+			public final InetAddress address;
+			public final int seqNum;
+			public final long incarnation;
+			public final char status;
+
+			public Member(String id, InetAddress address, int seqNum, long incarnation, char status) {
+				if (!validId(id)) {
+					throw new IllegalArgumentException("invalid member ID");
+				}
+				if (incarnation < 0) {
+					throw new IllegalArgumentException("invalid member incarnation: negative");
+				}
+				if (status != ALIVE && status != SUSPECT && status != DEAD) {
+					throw new IllegalArgumentException("invalid member status: "+status);
+				}
+
+				this.id = id;
+				this.address = address;
+				this.seqNum = seqNum;
+				this.incarnation = incarnation;
+				this.status = status;
+			}
+
+			public String toString() {
+				return id+"@"+address.getHostAddress()+"/"+seqNum+"/"+incarnation+status;
 			}
+		}
 
-			if (partNum < 0 || partNum >= totalParts) {
-				throw new IllegalArgumentException("invalid part number");
+		public final String sender;
+		public final int seqNum;
+		public final long incarnation;
+		public final char kind;
+		public final int nonce;
+		public final String target;
+		private final java.util.List<Member> members = new ArrayList<>();
+
+		public Gossip(String sender, int seqNum, long incarnation, char kind, int nonce, String target) {
+			if (!validId(sender)) {
+				throw new IllegalArgumentException("invalid sender ID");
+			}
+			if (incarnation < 0) {
+				throw new IllegalArgumentException("invalid incarnation: negative");
+			}
+			if (kind != PING && kind != ACK && kind != PING_REQ && kind != MEMBERS) {
+				throw new IllegalArgumentException("invalid gossip kind: "+kind);
+			}
+			if (target != null && !validId(target)) {
+				throw new IllegalArgumentException("invalid target ID");
+			}
+			if (kind == PING_REQ && target == null) {
+				throw new IllegalArgumentException("missing target");
 			}
 
-			this.data = parts[6];
-			if (this.data.length() > 255) {
-				throw new IllegalArgumentException("invalid data size (more than 255 chars)");
+			this.sender = sender;
+			this.seqNum = seqNum;
+			this.incarnation = incarnation;
+			this.kind = kind;
+			this.nonce = nonce;
+			this.target = target;
+		}
+
+		public java.util.List<Member> members() {
+			return Collections.unmodifiableList(members);
+		}
+
+		public void addMember(Member m) {
+			if (members.size() == MAX_MEMBERS) {
+				throw new IllegalArgumentException("too many members");
 			}
+			members.add(m);
+		}
+
+		@Override
+		public Type type() {
+			return Type.GOSSIP;
 		}
 
 		@Override
 		public String format() {
-			return LIST+";"+this.sender+";"+ this.peer+";"+String.valueOf(this.seqNum)+";"+
-					String.valueOf(this.totalParts)+";"+
-					String.valueOf(this.partNum)+";"+
-					this.data+";";
+			StringBuilder sb = new StringBuilder(GOSSIP+";"+this.sender+";"+this.seqNum+";"+
+				this.incarnation+";"+this.kind+";"+this.nonce+";"+
+				(this.target != null ? this.target : "")+";"+this.members.size()+";");
+			for (Member m : members) {
+				sb.append(m.id+";"+hex(m.address.getAddress())+";"+m.seqNum+";"+m.incarnation+";"+m.status+";");
+			}
+			return sb.toString();
+		}
+
+		private static String hex(byte[] bytes) {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
 		}
 
 		public String toString() {
-			return "LIST{sender="+this.sender+
-					" peer="+this.peer+
-					" seqNum="+String.valueOf(this.seqNum)+
-					" totalParts="+String.valueOf(this.totalParts)+
-					" partNum="+String.valueOf(this.partNum)+
-					" data="+this.data+"}";
+			return "GOSSIP{sender="+this.sender+
+				" seqNum="+this.seqNum+
+				" incarnation="+this.incarnation+
+				" kind="+this.kind+
+				" nonce="+this.nonce+
+				(this.target != null ? " target="+this.target : "")+
+				" members="+this.members+"}";
 		}
 	}
 
-	public static class Dying extends Message {
+	/**
+	 * Asks for the parts of a LIST reply which weren't received, as ranges of
+	 * part numbers. baseSeqNum is the base sequence number of the reply, or
+	 * Syn.NO_BASE for a full database.
+	 */
+	public static class Nack extends Message {
+		public static final int MAX_RANGES = 64;
+
 		public final String sender;
+		public final String peer;
+		public final int seqNum;
+		public final int baseSeqNum;
+		private final java.util.List<int[]> ranges = new ArrayList<>();
 
-		public Dying(String sender) {
-			if (!idPattern.matcher(sender).matches()) {
+		public Nack(String sender, String peer, int seqNum, int baseSeqNum) {
+			if (!validId(sender)) {
 				throw new IllegalArgumentException("invalid sender ID");
 			}
+			if (!validId(peer)) {
+				throw new IllegalArgumentException("invalid peer ID");
+			}
 
 			this.sender = sender;
+			this.peer = peer;
+			this.seqNum = seqNum;
+			this.baseSeqNum = baseSeqNum;
 		}
 
-		public Dying(String[] parts) {
-			if (parts.length < 2) {
-				throw new IllegalArgumentException("wrong number of fields");
+		/**
+		 * Adds a range of missing parts, from first to last included.
+		 */
+		public void addRange(int first, int last) {
+			if (ranges.size() == MAX_RANGES) {
+				throw new IllegalArgumentException("too many ranges");
 			}
+			if (first < 0 || last < first) {
+				throw new IllegalArgumentException("invalid range");
+			}
+			ranges.add(new int[] {first, last});
+		}
 
-			if (!DYING.equals(parts[0])) {
-				throw new IllegalArgumentException("not a SYN message");
+		public int ranges() {
+			return ranges.size();
+		}
+
+		public int first(int range) {
+			return ranges.get(range)[0];
+		}
+
+		public int last(int range) {
+			return ranges.get(range)[1];
+		}
+
+		@Override
+		public Type type() {
+			return Type.NACK;
+		}
+
+		@Override
+		public String format() {
+			StringBuilder sb = new StringBuilder(NACK+";"+this.sender+";"+this.peer+";"+
+				this.seqNum+";"+this.ranges.size()+";");
+			for (int[] r : ranges) {
+				sb.append(r[0]+";"+r[1]+";");
+			}
+			if (this.baseSeqNum != Syn.NO_BASE) {
+				sb.append(this.baseSeqNum+";");
 			}
+			return sb.toString();
+		}
 
-			this.sender = parts[1];
-			if (!idPattern.matcher(this.sender).matches()) {
+		public String toString() {
+			String s = "NACK{sender="+this.sender+
+					" peer="+this.peer+
+					" seqNum="+this.seqNum;
+			if (this.baseSeqNum != Syn.NO_BASE) {
+				s += " baseSeqNum="+this.baseSeqNum;
+			}
+			s += " ranges=[";
+			for (int i = 0; i < ranges.size(); ++i) {
+				s += (i > 0 ? " " : "")+first(i)+"-"+last(i);
+			}
+			return s+"]}";
+		}
+	}
+
+	public static class Dying extends Message {
+		public final String sender;
+
+		public Dying(String sender) {
+			if (!validId(sender)) {
 				throw new IllegalArgumentException("invalid sender ID");
 			}
+
+			this.sender = sender;
+		}
+
+		@Override
+		public Type type() {
+			return Type.DYING;
 		}
 
 		@Override
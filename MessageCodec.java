@@ -0,0 +1,667 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes messages in the text wire format straight from and to
+ * byte buffers. Fields are scanned in place: integers are parsed without
+ * substrings and IDs are validated byte per byte, then interned so that the
+ * IDs of known peers don't allocate a new String for every datagram.
+ *
+ * Messages in the binary wire format are recognized and handed to a
+ * BinaryCodec.
+ *
+ * A codec holds scratch state and must not be shared between threads.
+ */
+class MessageCodec {
+	private static final byte SEP = ';';
+
+	private static final byte[] HELLO = ascii("HELLO");
+	private static final byte[] SYN = ascii("SYN");
+	private static final byte[] LIST = ascii("LIST");
+	private static final byte[] DYING = ascii("DYING");
+	private static final byte[] TREE = ascii("TREE");
+	private static final byte[] GOSSIP = ascii("GOSSIP");
+	private static final byte[] NACK = ascii("NACK");
+
+	/**
+	 * Maximum LIST data length in the text format.
+	 */
+	static final int MAX_TEXT_DATA_LENGTH = 255;
+
+	private static final int ID_CACHE_SIZE = 1024; // Must be a power of two
+	private static final int MAX_FIELDS = 6 + 255;
+
+	private final String[] idCache = new String[ID_CACHE_SIZE];
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final BinaryCodec binary = new BinaryCodec(this);
+
+	// Scratch state used while decoding a single message
+	private ByteBuffer buf;
+	private final int[] fieldStart = new int[MAX_FIELDS];
+	private final int[] fieldEnd = new int[MAX_FIELDS];
+	private int fieldCount;
+	private byte[] scratch = new byte[256];
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Decodes a message from the remaining bytes of buf. On return, the buffer
+	 * has been consumed.
+	 */
+	public Message decode(ByteBuffer buf) {
+		if (BinaryCodec.isBinary(buf)) {
+			return binary.decode(buf);
+		}
+
+		this.buf = buf;
+		try {
+			split(buf.position(), buf.limit());
+			buf.position(buf.limit());
+
+			if (fieldIs(0, HELLO)) {
+				return decodeHello();
+			} else if (fieldIs(0, SYN)) {
+				return decodeSyn();
+			} else if (fieldIs(0, LIST)) {
+				return decodeList();
+			} else if (fieldIs(0, DYING)) {
+				return decodeDying();
+			} else if (fieldIs(0, TREE)) {
+				return decodeTree();
+			} else if (fieldIs(0, GOSSIP)) {
+				return decodeGossip();
+			} else if (fieldIs(0, NACK)) {
+				return decodeNack();
+			}
+			throw new IllegalArgumentException("unknown message type: "+string(0));
+		} finally {
+			this.buf = null;
+		}
+	}
+
+	/**
+	 * Finds field boundaries. Like String.split, trailing empty fields are
+	 * dropped.
+	 */
+	private void split(int start, int end) {
+		while (end > start && buf.get(end - 1) == SEP) {
+			--end;
+		}
+
+		fieldCount = 0;
+		int fieldFrom = start;
+		for (int i = start; i <= end; ++i) {
+			if (i == end || buf.get(i) == SEP) {
+				if (fieldCount == MAX_FIELDS) {
+					throw new IllegalArgumentException("wrong number of fields");
+				}
+				fieldStart[fieldCount] = fieldFrom;
+				fieldEnd[fieldCount] = i;
+				++fieldCount;
+				fieldFrom = i + 1;
+			}
+		}
+	}
+
+	private boolean fieldIs(int field, byte[] value) {
+		int start = fieldStart[field];
+		if (fieldEnd[field] - start != value.length) {
+			return false;
+		}
+		for (int i = 0; i < value.length; ++i) {
+			if (buf.get(start + i) != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a decimal integer field, with the same rules as Integer.parseInt.
+	 */
+	private int integer(int field, String what) {
+		int i = fieldStart[field];
+		int end = fieldEnd[field];
+		if (i == end) {
+			throw new IllegalArgumentException("invalid "+what+": empty");
+		}
+
+		boolean negative = false;
+		byte first = buf.get(i);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			++i;
+			if (i == end) {
+				throw new IllegalArgumentException("invalid "+what+": no digits");
+			}
+		}
+
+		// The magnitude of Integer.MIN_VALUE doesn't fit in an int
+		long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long value = 0;
+		for (; i < end; ++i) {
+			int digit = buf.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new IllegalArgumentException("invalid "+what+": not a number");
+			}
+			value = value * 10 + digit;
+			if (value > limit) {
+				throw new IllegalArgumentException("invalid "+what+": out of range");
+			}
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Parses a non-negative decimal long field.
+	 */
+	private long longInteger(int field, String what) {
+		int start = fieldStart[field];
+		int end = fieldEnd[field];
+		if (start == end) {
+			throw new IllegalArgumentException("invalid "+what+": empty");
+		}
+
+		long value = 0;
+		for (int i = start; i < end; ++i) {
+			int digit = buf.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new IllegalArgumentException("invalid "+what+": not a number");
+			}
+			if (value > (Long.MAX_VALUE - digit) / 10) {
+				throw new IllegalArgumentException("invalid "+what+": out of range");
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private String id(int field, String what) {
+		return id(buf, fieldStart[field], fieldEnd[field], what);
+	}
+
+	private String string(int field) {
+		return string(buf, fieldStart[field], fieldEnd[field]);
+	}
+
+	/**
+	 * Validates an ID stored in buf between start and end, and returns it as
+	 * an interned String.
+	 */
+	String id(ByteBuffer buf, int start, int end, String what) {
+		int len = end - start;
+		if (len > Message.MAX_ID_LENGTH) {
+			throw new IllegalArgumentException("invalid "+what+" ID");
+		}
+
+		int hash = 0;
+		for (int i = 0; i < len; ++i) {
+			byte b = buf.get(start + i);
+			if (!Message.validIdChar((char) b)) {
+				throw new IllegalArgumentException("invalid "+what+" ID");
+			}
+			hash = 31 * hash + b;
+		}
+
+		int slot = (hash ^ (hash >>> 16)) & (ID_CACHE_SIZE - 1);
+		String cached = idCache[slot];
+		if (cached != null && cached.length() == len) {
+			boolean equal = true;
+			for (int i = 0; i < len; ++i) {
+				if (cached.charAt(i) != buf.get(start + i)) {
+					equal = false;
+					break;
+				}
+			}
+			if (equal) {
+				return cached;
+			}
+		}
+
+		String id = string(buf, start, end);
+		idCache[slot] = id;
+		return id;
+	}
+
+	/**
+	 * Returns the bytes of buf between start and end as a String decoded from
+	 * UTF-8.
+	 */
+	String string(ByteBuffer buf, int start, int end) {
+		int len = end - start;
+		if (scratch.length < len) {
+			scratch = new byte[Math.max(len, 2 * scratch.length)];
+		}
+		for (int i = 0; i < len; ++i) {
+			scratch[i] = buf.get(start + i);
+		}
+		return new String(scratch, 0, len, StandardCharsets.UTF_8);
+	}
+
+	private Message.Hello decodeHello() {
+		// Let's be conservative in what we accept, because we want to spot
+		// implementation mistakes.
+		if (fieldCount < 5) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		String sender = id(1, "sender");
+		int seqNum = integer(2, "sequence number");
+		int helloInterval = integer(3, "HELLO interval");
+		if (helloInterval < 0 || helloInterval > 255) {
+			throw new IllegalArgumentException("invalid HELLO interval: not in range");
+		}
+
+		int peersLen = integer(4, "number of peers");
+		if (peersLen < 0 || peersLen > 255) {
+			throw new IllegalArgumentException("invalid number of peers: not in range");
+		}
+
+		// Capabilities are an optional field after the peers
+		int capabilities = 0;
+		if (peersLen == fieldCount - 6) {
+			capabilities = integer(fieldCount - 1, "capabilities");
+		} else if (peersLen != fieldCount - 5) {
+			throw new IllegalArgumentException("invalid number of peers: mismatched");
+		}
+
+		Message.Hello hello = new Message.Hello(sender, seqNum, helloInterval, capabilities);
+		for (int i = 5; i < 5 + peersLen; ++i) {
+			hello.addPeer(id(i, "peer"));
+		}
+		return hello;
+	}
+
+	private Message.Syn decodeSyn() {
+		if (fieldCount < 4) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		String sender = id(1, "sender");
+		String peer = id(2, "peer");
+		int seqNum = integer(3, "sequence number");
+		int baseSeqNum = Message.Syn.NO_BASE;
+		if (fieldCount >= 5) {
+			baseSeqNum = integer(4, "base sequence number");
+		}
+		return new Message.Syn(sender, peer, seqNum, baseSeqNum);
+	}
+
+	private Message.List decodeList() {
+		if (fieldCount < 7) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		String sender = id(1, "sender");
+		String peer = id(2, "peer");
+		int seqNum = integer(3, "sequence number");
+		int totalParts = integer(4, "total parts number");
+		int partNum = integer(5, "part number");
+		String data = string(6);
+		if (data.length() > MAX_TEXT_DATA_LENGTH) {
+			throw new IllegalArgumentException("invalid data size (more than "+MAX_TEXT_DATA_LENGTH+" chars)");
+		}
+
+		// File metadata is optional, peers not sending it stop after data. It
+		// can also be left empty, when followed by delta fields.
+		long size = Database.Entry.UNKNOWN;
+		long mtime = Database.Entry.UNKNOWN;
+		String digest = null;
+		if (fieldCount >= 10 && fieldEnd[9] > fieldStart[9]) {
+			size = longInteger(7, "file size");
+			mtime = longInteger(8, "modification time");
+			digest = string(9);
+		}
+
+		int baseSeqNum = Message.Syn.NO_BASE;
+		char op = Message.List.NONE;
+		if (fieldCount >= 12) {
+			baseSeqNum = integer(10, "base sequence number");
+			if (fieldEnd[11] - fieldStart[11] != 1) {
+				throw new IllegalArgumentException("invalid change operation: "+string(11));
+			}
+			op = (char) buf.get(fieldStart[11]);
+		}
+		return new Message.List(sender, peer, seqNum, totalParts, partNum, data, size, mtime, digest, baseSeqNum, op);
+	}
+
+	private Message.Tree decodeTree() {
+		// The depth is an optional last field
+		int count = fieldCount - 5;
+		if (count != 0 && count != 1 && count != Database.FANOUT && count != Database.FANOUT + 1) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		String sender = id(1, "sender");
+		String peer = id(2, "peer");
+		int seqNum = integer(3, "sequence number");
+		int node = integer(4, "node");
+		int depth = count % 2 == 1 ? integer(fieldCount - 1, "depth") : Database.MIN_DEPTH;
+		if (count <= 1) {
+			return new Message.Tree(sender, peer, seqNum, depth, node);
+		}
+
+		long[] hashes = new long[Database.FANOUT];
+		for (int i = 0; i < hashes.length; ++i) {
+			hashes[i] = hexLong(5 + i, "node hash");
+		}
+		return new Message.Tree(sender, peer, seqNum, depth, node, hashes);
+	}
+
+	/**
+	 * Parses an unsigned 64-bit hexadecimal field.
+	 */
+	private long hexLong(int field, String what) {
+		int start = fieldStart[field];
+		int end = fieldEnd[field];
+		if (start == end || end - start > 16) {
+			throw new IllegalArgumentException("invalid "+what+": wrong length");
+		}
+
+		long value = 0;
+		for (int i = start; i < end; ++i) {
+			int digit = Character.digit((char) buf.get(i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("invalid "+what+": not a number");
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a single-char field.
+	 */
+	private char character(int field, String what) {
+		if (fieldEnd[field] - fieldStart[field] != 1) {
+			throw new IllegalArgumentException("invalid "+what+": "+string(field));
+		}
+		return (char) buf.get(fieldStart[field]);
+	}
+
+	/**
+	 * Parses an IP address field, as the hex bytes of the address.
+	 */
+	private InetAddress address(int field, String what) {
+		int start = fieldStart[field];
+		int end = fieldEnd[field];
+		if (end - start != 8 && end - start != 32) {
+			throw new IllegalArgumentException("invalid "+what+": wrong length");
+		}
+
+		byte[] addr = new byte[(end - start) / 2];
+		for (int i = 0; i < addr.length; ++i) {
+			int hi = Character.digit((char) buf.get(start + 2 * i), 16);
+			int lo = Character.digit((char) buf.get(start + 2 * i + 1), 16);
+			if (hi < 0 || lo < 0) {
+				throw new IllegalArgumentException("invalid "+what+": not a number");
+			}
+			addr[i] = (byte) ((hi << 4) | lo);
+		}
+		try {
+			return InetAddress.getByAddress(addr);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("invalid "+what, e);
+		}
+	}
+
+	private Message.Gossip decodeGossip() {
+		if (fieldCount < 8) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		String sender = id(1, "sender");
+		int seqNum = integer(2, "sequence number");
+		long incarnation = longInteger(3, "incarnation");
+		char kind = character(4, "gossip kind");
+		int nonce = integer(5, "nonce");
+		String target = fieldEnd[6] > fieldStart[6] ? id(6, "target") : null;
+		int count = integer(7, "number of members");
+		if (count < 0 || count > Message.Gossip.MAX_MEMBERS || fieldCount != 8 + 5 * count) {
+			throw new IllegalArgumentException("invalid number of members");
+		}
+
+		Message.Gossip gossip = new Message.Gossip(sender, seqNum, incarnation, kind, nonce, target);
+		for (int i = 0; i < count; ++i) {
+			int f = 8 + 5 * i;
+			gossip.addMember(new Message.Gossip.Member(id(f, "member"), address(f + 1, "member address"),
+				integer(f + 2, "member sequence number"), longInteger(f + 3, "member incarnation"),
+				character(f + 4, "member status")));
+		}
+		return gossip;
+	}
+
+	private Message.Nack decodeNack() {
+		if (fieldCount < 5) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		String sender = id(1, "sender");
+		String peer = id(2, "peer");
+		int seqNum = integer(3, "sequence number");
+		int count = integer(4, "number of ranges");
+		if (count < 0 || count > Message.Nack.MAX_RANGES || (fieldCount != 5 + 2 * count && fieldCount != 6 + 2 * count)) {
+			throw new IllegalArgumentException("invalid number of ranges");
+		}
+		int baseSeqNum = Message.Syn.NO_BASE;
+		if (fieldCount == 6 + 2 * count) {
+			baseSeqNum = integer(5 + 2 * count, "base sequence number");
+		}
+
+		Message.Nack nack = new Message.Nack(sender, peer, seqNum, baseSeqNum);
+		for (int i = 0; i < count; ++i) {
+			nack.addRange(integer(5 + 2 * i, "range start"), integer(6 + 2 * i, "range end"));
+		}
+		return nack;
+	}
+
+	private Message.Dying decodeDying() {
+		if (fieldCount < 2) {
+			throw new IllegalArgumentException("wrong number of fields");
+		}
+
+		return new Message.Dying(id(1, "sender"));
+	}
+
+	/**
+	 * Encodes a message in the binary format at the current position of buf.
+	 * Throws a BufferOverflowException if the message doesn't fit.
+	 */
+	public void encodeBinary(Message msg, ByteBuffer buf) {
+		binary.encode(msg, buf);
+	}
+
+	/**
+	 * Encodes a message at the current position of buf. Throws a
+	 * BufferOverflowException if the message doesn't fit.
+	 */
+	public void encode(Message msg, ByteBuffer buf) {
+		if (msg instanceof Message.Hello) {
+			Message.Hello hello = (Message.Hello) msg;
+			buf.put(HELLO).put(SEP);
+			putAscii(buf, hello.sender).put(SEP);
+			putInt(buf, hello.seqNum).put(SEP);
+			putInt(buf, hello.helloInterval).put(SEP);
+			putInt(buf, hello.peers().size());
+			for (String peer : hello.peers()) {
+				putAscii(buf.put(SEP), peer);
+			}
+			if (hello.capabilities != 0) {
+				putInt(buf.put(SEP), hello.capabilities);
+			}
+		} else if (msg instanceof Message.Syn) {
+			Message.Syn syn = (Message.Syn) msg;
+			buf.put(SYN).put(SEP);
+			putAscii(buf, syn.sender).put(SEP);
+			putAscii(buf, syn.peer).put(SEP);
+			putInt(buf, syn.seqNum).put(SEP);
+			if (syn.baseSeqNum != Message.Syn.NO_BASE) {
+				putInt(buf, syn.baseSeqNum).put(SEP);
+			}
+		} else if (msg instanceof Message.List) {
+			Message.List list = (Message.List) msg;
+			if (list.data.length() > MAX_TEXT_DATA_LENGTH) {
+				throw new IllegalArgumentException("invalid data size (more than "+MAX_TEXT_DATA_LENGTH+" chars)");
+			}
+			buf.put(LIST).put(SEP);
+			putAscii(buf, list.sender).put(SEP);
+			putAscii(buf, list.peer).put(SEP);
+			byte[] encoded = list.encoded == null ? null : list.encoded.text;
+			if (encoded != null) {
+				buf.put(encoded);
+				return;
+			}
+			int start = buf.position();
+			putInt(buf, list.seqNum).put(SEP);
+			putInt(buf, list.totalParts).put(SEP);
+			putInt(buf, list.partNum).put(SEP);
+			putUtf8(buf, list.data).put(SEP);
+			if (list.digest != null) {
+				putInt(buf, list.size).put(SEP);
+				putInt(buf, list.mtime).put(SEP);
+				putAscii(buf, list.digest).put(SEP);
+			} else if (list.delta()) {
+				buf.put(SEP).put(SEP).put(SEP);
+			}
+			if (list.delta()) {
+				putInt(buf, list.baseSeqNum).put(SEP);
+				buf.put((byte) list.op).put(SEP);
+			}
+			if (list.encoded != null) {
+				list.encoded.text = copy(buf, start);
+			}
+		} else if (msg instanceof Message.Dying) {
+			Message.Dying dying = (Message.Dying) msg;
+			buf.put(DYING).put(SEP);
+			putAscii(buf, dying.sender).put(SEP);
+		} else if (msg instanceof Message.Tree) {
+			Message.Tree tree = (Message.Tree) msg;
+			buf.put(TREE).put(SEP);
+			putAscii(buf, tree.sender).put(SEP);
+			putAscii(buf, tree.peer).put(SEP);
+			putInt(buf, tree.seqNum).put(SEP);
+			putInt(buf, tree.node).put(SEP);
+			if (!tree.request()) {
+				for (int i = 0; i < Database.FANOUT; ++i) {
+					putHex(buf, tree.hash(i)).put(SEP);
+				}
+			}
+			if (tree.depth != Database.MIN_DEPTH) {
+				putInt(buf, tree.depth).put(SEP);
+			}
+		} else if (msg instanceof Message.Gossip) {
+			Message.Gossip gossip = (Message.Gossip) msg;
+			buf.put(GOSSIP).put(SEP);
+			putAscii(buf, gossip.sender).put(SEP);
+			putInt(buf, gossip.seqNum).put(SEP);
+			putInt(buf, gossip.incarnation).put(SEP);
+			buf.put((byte) gossip.kind).put(SEP);
+			putInt(buf, gossip.nonce).put(SEP);
+			if (gossip.target != null) {
+				putAscii(buf, gossip.target);
+			}
+			buf.put(SEP);
+			putInt(buf, gossip.members().size()).put(SEP);
+			for (Message.Gossip.Member m : gossip.members()) {
+				putAscii(buf, m.id).put(SEP);
+				for (byte b : m.address.getAddress()) {
+					buf.put((byte) Character.forDigit((b >> 4) & 0xF, 16));
+					buf.put((byte) Character.forDigit(b & 0xF, 16));
+				}
+				buf.put(SEP);
+				putInt(buf, m.seqNum).put(SEP);
+				putInt(buf, m.incarnation).put(SEP);
+				buf.put((byte) m.status).put(SEP);
+			}
+		} else if (msg instanceof Message.Nack) {
+			Message.Nack nack = (Message.Nack) msg;
+			buf.put(NACK).put(SEP);
+			putAscii(buf, nack.sender).put(SEP);
+			putAscii(buf, nack.peer).put(SEP);
+			putInt(buf, nack.seqNum).put(SEP);
+			putInt(buf, nack.ranges()).put(SEP);
+			for (int i = 0; i < nack.ranges(); ++i) {
+				putInt(buf, nack.first(i)).put(SEP);
+				putInt(buf, nack.last(i)).put(SEP);
+			}
+			if (nack.baseSeqNum != Message.Syn.NO_BASE) {
+				putInt(buf, nack.baseSeqNum).put(SEP);
+			}
+		} else {
+			throw new IllegalArgumentException("unknown message: "+msg);
+		}
+	}
+
+	/**
+	 * Returns a copy of the bytes of buf from start to its position.
+	 */
+	static byte[] copy(ByteBuffer buf, int start) {
+		byte[] bytes = new byte[buf.position() - start];
+		buf.get(start, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes an ASCII-only string, such as a validated ID.
+	 */
+	static ByteBuffer putAscii(ByteBuffer buf, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			buf.put((byte) s.charAt(i));
+		}
+		return buf;
+	}
+
+	/**
+	 * Writes a decimal integer. v must not be Long.MIN_VALUE.
+	 */
+	private static ByteBuffer putInt(ByteBuffer buf, long v) {
+		long x = v;
+		if (x < 0) {
+			buf.put((byte) '-');
+			x = -x;
+		}
+		long div = 1;
+		while (x / div >= 10) {
+			div *= 10;
+		}
+		for (; div > 0; div /= 10) {
+			buf.put((byte) ('0' + (x / div) % 10));
+		}
+		return buf;
+	}
+
+	/**
+	 * Writes an unsigned 64-bit integer in hexadecimal, without leading zeros.
+	 */
+	private static ByteBuffer putHex(ByteBuffer buf, long v) {
+		int shift = 60;
+		while (shift > 0 && (v >>> shift) == 0) {
+			shift -= 4;
+		}
+		for (; shift >= 0; shift -= 4) {
+			buf.put((byte) Character.forDigit((int) (v >>> shift) & 0xF, 16));
+		}
+		return buf;
+	}
+
+	ByteBuffer putUtf8(ByteBuffer buf, String s) {
+		encoder.reset();
+		CoderResult res = encoder.encode(CharBuffer.wrap(s), buf, true);
+		if (res.isOverflow()) {
+			throw new BufferOverflowException();
+		}
+		if (res.isError()) {
+			throw new IllegalArgumentException("cannot encode data as UTF-8");
+		}
+		encoder.flush(buf);
+		return buf;
+	}
+}
@@ -1,48 +1,538 @@
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.net.DatagramSocket;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.DatagramPacket;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A message multiplexer and demultiplexer over UDP.
+ *
+ * It can either use a blocking DatagramSocket with one sender thread and one
+ * receiver thread, or a non-blocking DatagramChannel driven by a single
+ * Selector event loop.
  */
 class MuxDemux implements Runnable {
-	private static final int RECEIVE_BUFFER_SIZE = 2048;
+	/**
+	 * Largest UDP payload over IPv4.
+	 */
+	private static final int MAX_UDP_PAYLOAD = 65507;
+
+	private static final int RECEIVE_BUFFER_SIZE = MAX_UDP_PAYLOAD + 1;
+	private static final int SEND_BUFFER_SIZE = MAX_UDP_PAYLOAD;
+
+	private static final int REASSEMBLY_MAX_ENTRIES = 256;
+	private static final int REASSEMBLY_MAX_BYTES = 4 * 1024 * 1024;
+	private static final Duration REASSEMBLY_TIMEOUT = Duration.ofSeconds(5);
+
+	/**
+	 * A batch datagram starts with this header and contains several frames,
+	 * each of them being a decimal length, a ';' and an encoded message.
+	 */
+	private static final byte[] BATCH_HEADER = "BATCH;".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Maximum number of datagrams read in a row before the event loop gives
+	 * outgoing messages a chance.
+	 */
+	private static final int MAX_READS_PER_WAKEUP = 64;
 
 	private DatagramSocket socket;
+	private DatagramChannel channel;
+	private Selector selector;
+	private final int port;
 	private final InetAddress brd;
-	private BlockingQueue<Envelope> outgoing = new ArrayBlockingQueue<>(32);
-	private List<MessageHandler> handlers = new ArrayList<>();
+	private final BufferPool receivePool = new BufferPool(RECEIVE_BUFFER_SIZE, 4);
+	private final BufferPool sendPool = new BufferPool(SEND_BUFFER_SIZE, 4);
+	private final OutgoingQueue outgoing;
+	private final Reassembler reassembler = new Reassembler(REASSEMBLY_MAX_ENTRIES, REASSEMBLY_MAX_BYTES, REASSEMBLY_TIMEOUT);
+	private final AtomicInteger nextFragmentId = new AtomicInteger();
+	private Executor senderExecutor = (r) -> new Thread(r).start();
+
+	/**
+	 * Handlers indexed by message type ordinal. Arrays are copied on write so
+	 * that the receive path can read them without locking.
+	 */
+	private volatile MessageHandler[][] handlers = new MessageHandler[Message.Type.values().length][0];
+	private volatile MessageHandler[] taps = new MessageHandler[0];
+	private volatile boolean tapsEnabled = true;
 
-	public MuxDemux(DatagramSocket socket) throws SocketException, UnknownHostException {
+	private volatile int maxDatagramSize = 1400;
+
+	/**
+	 * Local capabilities, as a set of Message.Hello.CAP_* bits.
+	 */
+	private volatile int capabilities = 0;
+
+	/**
+	 * Capabilities advertised by peers in their HELLO messages.
+	 */
+	private final Map<InetAddress, Integer> peerCapabilities = new ConcurrentHashMap<>();
+
+	public MuxDemux(DatagramSocket socket, int queueCapacity) throws SocketException, UnknownHostException {
 		socket.setBroadcast(true);
+		this.outgoing = new OutgoingQueue(queueCapacity);
 		this.socket = socket;
+		this.port = socket.getLocalPort();
 		this.brd = InetAddress.getByName("255.255.255.255");
 	}
 
-	public void addHandler(MessageHandler h) {
-		this.handlers.add(h);
+	/**
+	 * Creates a multiplexer using a bound DatagramChannel. The channel is
+	 * switched to non-blocking mode.
+	 */
+	public MuxDemux(DatagramChannel channel, int queueCapacity) throws IOException {
+		this.outgoing = new OutgoingQueue(queueCapacity);
+		channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+		channel.configureBlocking(false);
+		this.channel = channel;
+		this.selector = Selector.open();
+		this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		this.brd = InetAddress.getByName("255.255.255.255");
+	}
+
+	/**
+	 * Registers a handler for a single message type.
+	 */
+	public synchronized void addHandler(Message.Type type, MessageHandler h) {
+		MessageHandler[][] handlers = this.handlers.clone();
+		MessageHandler[] forType = handlers[type.ordinal()];
+		forType = Arrays.copyOf(forType, forType.length + 1);
+		forType[forType.length - 1] = h;
+		handlers[type.ordinal()] = forType;
+		this.handlers = handlers;
+	}
+
+	/**
+	 * Registers a tap, which receives all messages regardless of their type.
+	 */
+	public synchronized void addTap(MessageHandler h) {
+		MessageHandler[] taps = Arrays.copyOf(this.taps, this.taps.length + 1);
+		taps[taps.length - 1] = h;
+		this.taps = taps;
+	}
+
+	/**
+	 * Enables or disables delivery to taps.
+	 */
+	public void setTapsEnabled(boolean enabled) {
+		this.tapsEnabled = enabled;
+	}
+
+	private synchronized void setCapability(int cap, boolean enabled) {
+		if (enabled) {
+			capabilities |= cap;
+		} else {
+			capabilities &= ~cap;
+		}
+	}
+
+	/**
+	 * Returns the local capabilities, to be advertised in HELLO messages.
+	 */
+	public int capabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * Checks whether both this node and a peer support a capability.
+	 * Broadcasts only use the baseline protocol.
+	 */
+	public boolean negotiated(InetAddress addr, int cap) {
+		if ((capabilities & cap) == 0 || addr.equals(brd)) {
+			return false;
+		}
+		Integer peerCaps = peerCapabilities.get(addr);
+		return peerCaps != null && (peerCaps & cap) != 0;
+	}
+
+	/**
+	 * Enables or disables batching of LIST, SYN, TREE and NACK messages bound for
+	 * the same peer into a single datagram. Batches are only sent to peers
+	 * advertising support for them.
+	 */
+	public void setBatching(boolean enabled) {
+		setCapability(Message.Hello.CAP_BATCH, enabled);
+	}
+
+	/**
+	 * Enables or disables the binary wire format. It's only used for unicast
+	 * messages to peers advertising support for it.
+	 */
+	public void setBinary(boolean enabled) {
+		setCapability(Message.Hello.CAP_BINARY, enabled);
+	}
+
+	/**
+	 * Enables or disables fragmentation of datagrams larger than the maximum
+	 * datagram size. Unicast datagrams are only fragmented for peers
+	 * advertising support for it, and broadcasts are fragmented as soon as
+	 * fragmentation is enabled locally.
+	 */
+	public void setFragmentation(boolean enabled) {
+		setCapability(Message.Hello.CAP_FRAGMENT, enabled);
+	}
+
+	/**
+	 * Enables or disables database reconciliation with summary trees. Peers
+	 * only reply to a SYN with a summary tree if both sides support it.
+	 */
+	public void setReconciliation(boolean enabled) {
+		setCapability(Message.Hello.CAP_TREE, enabled);
+	}
+
+	/**
+	 * Enables or disables prefix coding of full databases: each LIST row only
+	 * carries the end of its path, after the prefix it shares with the
+	 * previous row. It's only used for peers advertising support for it.
+	 */
+	public void setPrefixCoding(boolean enabled) {
+		setCapability(Message.Hello.CAP_PREFIX, enabled);
+	}
+
+	/**
+	 * Enables or disables selective retransmission: a peer missing parts of a
+	 * LIST reply asks for them with a NACK instead of sending another SYN. It's
+	 * only used with peers advertising support for it.
+	 */
+	public void setSelectiveRetransmission(boolean enabled) {
+		setCapability(Message.Hello.CAP_NACK, enabled);
+	}
+
+	private boolean shouldFragment(InetAddress addr) {
+		if (addr.equals(brd)) {
+			return (capabilities & Message.Hello.CAP_FRAGMENT) != 0;
+		}
+		return negotiated(addr, Message.Hello.CAP_FRAGMENT);
+	}
+
+	/**
+	 * Sets the executor running the sender of the blocking socket mode. By
+	 * default, it gets its own thread. It must keep running after the other
+	 * tasks are stopped, to send DYING messages.
+	 */
+	public void setSenderExecutor(Executor executor) {
+		this.senderExecutor = executor;
+	}
+
+	/**
+	 * Sets the maximum size of batches and fragments. This should be the path
+	 * MTU minus the IP and UDP headers.
+	 */
+	public void setMaxDatagramSize(int size) {
+		if (size < BATCH_HEADER.length + Reassembler.HEADER_SIZE || size > SEND_BUFFER_SIZE) {
+			throw new IllegalArgumentException("invalid datagram size: not in range");
+		}
+		if (Reassembler.fragmentCount(SEND_BUFFER_SIZE, size) > Reassembler.MAX_FRAGMENTS) {
+			throw new IllegalArgumentException("invalid datagram size: too small to fragment the largest datagrams");
+		}
+		this.maxDatagramSize = size;
+	}
+
+	/**
+	 * Encodes a message into buf, which is flipped and ready to be sent.
+	 * Returns false if the message cannot be encoded.
+	 */
+	private static boolean encode(MessageCodec codec, Message msg, ByteBuffer buf, boolean binary) {
+		buf.clear();
+		try {
+			if (binary) {
+				codec.encodeBinary(msg, buf);
+			} else {
+				codec.encode(msg, buf);
+			}
+		} catch (BufferOverflowException | IllegalArgumentException e) {
+			System.err.println("Cannot encode message: "+msg);
+			return false;
+		}
+		buf.flip();
+		return true;
+	}
+
+	private static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+		if (buf.remaining() < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; ++i) {
+			if (buf.get(buf.position() + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Handles a received datagram, which can either hold a single message, a
+	 * batch of messages or a fragment of a larger datagram.
+	 */
+	private void deliver(MessageCodec codec, ByteBuffer buf, InetAddress addr) {
+		if (Reassembler.isFragment(buf)) {
+			ByteBuffer whole;
+			try {
+				whole = reassembler.receive(addr, buf);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Invalid fragment from "+addr+": "+e.getMessage());
+				return;
+			}
+			if (whole != null && !Reassembler.isFragment(whole)) {
+				deliver(codec, whole, addr);
+			}
+			return;
+		}
+
+		if (!startsWith(buf, BATCH_HEADER)) {
+			deliverOne(codec, buf, addr);
+			return;
+		}
+
+		int i = buf.position() + BATCH_HEADER.length;
+		int end = buf.limit();
+		while (i < end) {
+			int len = 0;
+			int digits = 0;
+			for (; i < end && buf.get(i) != ';'; ++i, ++digits) {
+				int digit = buf.get(i) - '0';
+				if (digit < 0 || digit > 9 || digits > 5) {
+					System.err.println("Invalid frame length in batch from "+addr);
+					return;
+				}
+				len = len * 10 + digit;
+			}
+			++i; // Skip ';'
+			if (digits == 0 || i + len > end) {
+				System.err.println("Truncated batch from "+addr);
+				return;
+			}
+
+			ByteBuffer frame = buf.duplicate();
+			frame.limit(i + len).position(i);
+			deliverOne(codec, frame, addr);
+			i += len;
+		}
+	}
+
+	/**
+	 * Parses a single message and hands it to the handlers registered for its
+	 * type and to taps.
+	 */
+	private void deliverOne(MessageCodec codec, ByteBuffer buf, InetAddress addr) {
+		Message msg;
+		try {
+			msg = codec.decode(buf.duplicate());
+		} catch (Exception e) {
+			String raw = StandardCharsets.UTF_8.decode(buf).toString();
+			System.err.println("Error while parsing message from "+addr+": "+raw);
+			e.printStackTrace();
+			return;
+		}
+
+		if (msg.type() == Message.Type.HELLO) {
+			peerCapabilities.put(addr, ((Message.Hello) msg).capabilities);
+		}
+
+		MessageHandler[] forType = handlers[msg.type().ordinal()];
+		MessageHandler[] taps = tapsEnabled ? this.taps : null;
+		if (forType.length == 0 && (taps == null || taps.length == 0)) {
+			return;
+		}
+
+		Envelope e = new Envelope(addr, msg);
+		for (MessageHandler h : forType) {
+			h.handleMessage(e);
+		}
+		if (taps != null) {
+			for (MessageHandler h : taps) {
+				h.handleMessage(e);
+			}
+		}
+	}
+
+	/**
+	 * Assembles outgoing datagrams. Messages are encoded in the binary format
+	 * if the destination supports it. When batching is negotiated, LIST,
+	 * SYN and TREE messages queued for the same peer are coalesced into a
+	 * single batch datagram, up to the maximum datagram size. Datagrams larger than that
+	 * are split in fragments if the destination supports it.
+	 *
+	 * Each worker has its own packer.
+	 */
+	private class Packer {
+		private final MessageCodec codec = new MessageCodec();
+		private final ByteBuffer frame = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+
+		/**
+		 * A message dequeued while filling a batch, but which didn't fit in it.
+		 */
+		private Envelope carry = null;
+
+		/**
+		 * A datagram being sent in fragments.
+		 */
+		private final ByteBuffer whole = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+		private InetAddress wholeTo = null;
+		private int fragmentId, fragmentIndex, fragmentCount, fragmentSize;
+
+		/**
+		 * Writes the next fragment of the current datagram into out.
+		 */
+		private InetAddress nextFragment(ByteBuffer out) {
+			Reassembler.fragment(whole, fragmentId, fragmentIndex, fragmentCount, fragmentSize, out);
+			InetAddress to = wholeTo;
+			++fragmentIndex;
+			if (fragmentIndex == fragmentCount) {
+				wholeTo = null;
+			}
+			return to;
+		}
+
+		/**
+		 * Sends a ready datagram, fragmenting it if necessary. Returns null if
+		 * it would take too many fragments, in which case it's dropped.
+		 */
+		private InetAddress ready(ByteBuffer out, InetAddress to) {
+			if (out.remaining() <= maxDatagramSize || !shouldFragment(to)) {
+				return to;
+			}
+
+			int count = Reassembler.fragmentCount(out.remaining(), maxDatagramSize);
+			if (count > Reassembler.MAX_FRAGMENTS) {
+				System.err.println("Dropping a datagram of "+out.remaining()+" bytes to "+to+": too many fragments");
+				return null;
+			}
+
+			whole.clear();
+			whole.put(out);
+			whole.flip();
+			wholeTo = to;
+			fragmentId = nextFragmentId.getAndIncrement();
+			fragmentIndex = 0;
+			fragmentSize = maxDatagramSize;
+			fragmentCount = count;
+			return nextFragment(out);
+		}
+
+		private boolean batchable(Envelope env) {
+			Message.Type type = env.msg.type();
+			return type == Message.Type.LIST || type == Message.Type.SYN || type == Message.Type.TREE ||
+				type == Message.Type.NACK;
+		}
+
+		private boolean sameBatch(Envelope first, Envelope env) {
+			return env != null && batchable(env) && first.address.equals(env.address);
+		}
+
+		private Envelope next(boolean block) throws InterruptedException {
+			Envelope env = carry;
+			carry = null;
+			if (env == null) {
+				env = block ? outgoing.take() : outgoing.poll();
+			}
+			return env;
+		}
+
+		/**
+		 * Appends the frame currently encoded in this.frame to a batch. Returns
+		 * false if it doesn't fit.
+		 */
+		private boolean append(ByteBuffer out) {
+			int len = frame.remaining();
+			int digits = 1;
+			int div = 1;
+			while (len / div >= 10) {
+				div *= 10;
+				++digits;
+			}
+			if (out.remaining() < digits + 1 + len) {
+				return false;
+			}
+			for (; div > 0; div /= 10) {
+				out.put((byte) ('0' + (len / div) % 10));
+			}
+			out.put((byte) ';');
+			out.put(frame);
+			return true;
+		}
+
+		/**
+		 * Fills out with the next datagram to send, ready to be read. Returns
+		 * its destination, or null if there is nothing to send and block is
+		 * false.
+		 */
+		public InetAddress pack(ByteBuffer out, boolean block) throws InterruptedException {
+			if (wholeTo != null) {
+				return nextFragment(out);
+			}
+
+			while (true) {
+				Envelope first = next(block);
+				if (first == null) {
+					return null;
+				}
+				boolean binary = negotiated(first.address, Message.Hello.CAP_BINARY);
+				if (!encode(codec, first.msg, frame, binary)) {
+					continue;
+				}
+
+				out.clear();
+				Envelope env = null;
+				if (batchable(first) && negotiated(first.address, Message.Hello.CAP_BATCH)) {
+					env = outgoing.poll();
+				}
+				if (!sameBatch(first, env) || frame.remaining() + BATCH_HEADER.length + 6 > maxDatagramSize) {
+					// Nothing to coalesce, send the message alone
+					carry = env;
+					out.put(frame);
+					out.flip();
+					InetAddress to = ready(out, first.address);
+					if (to == null) {
+						continue; // Dropped
+					}
+					return to;
+				}
+
+				out.limit(maxDatagramSize);
+				out.put(BATCH_HEADER);
+				append(out);
+				while (sameBatch(first, env)) {
+					if (encode(codec, env.msg, frame, binary) && !append(out)) {
+						break;
+					}
+					env = outgoing.poll();
+				}
+				carry = env;
+				out.flip();
+				return first.address;
+			}
+		}
 	}
 
 	private class SenderWorker implements Runnable {
 		public void run() {
+			Packer packer = new Packer();
+			ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE);
 			while (true) {
-				Envelope env;
+				InetAddress to;
 				try {
-					env = outgoing.take();
+					to = packer.pack(buf, true);
 				} catch (InterruptedException e) {
 					break;
 				}
 
-				byte[] buf = env.msg.format().getBytes();
-				DatagramPacket packet = new DatagramPacket(buf, buf.length, env.address, socket.getLocalPort());
+				DatagramPacket packet = new DatagramPacket(buf.array(), buf.limit(), to, port);
 				try {
 					socket.send(packet);
 				} catch (IOException e) {
@@ -54,7 +544,7 @@ class MuxDemux implements Runnable {
 
 	private class ReceiverWorker implements Runnable {
 		public void run() {
-			// TODO: messages too large will be truncated
+			MessageCodec codec = new MessageCodec();
 			byte[] buf = new byte[RECEIVE_BUFFER_SIZE];
 			DatagramPacket packet = new DatagramPacket(buf, buf.length);
 			while (true) {
@@ -65,37 +555,156 @@ class MuxDemux implements Runnable {
 					break;
 				}
 
-				String raw = new String(packet.getData(), 0, packet.getLength());
-				InetAddress addr = packet.getAddress();
+				deliver(codec, ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), packet.getAddress());
+			}
+		}
+	}
+
+	/**
+	 * Drives both directions of a non-blocking channel from a single thread.
+	 * Datagrams are read into pooled direct buffers, and outgoing datagrams are
+	 * packed into a direct buffer which is kept around until the channel
+	 * accepts it.
+	 */
+	private class EventLoop implements Runnable {
+		private final MessageCodec codec = new MessageCodec();
+		private final Packer packer = new Packer();
+
+		/**
+		 * An encoded datagram the channel didn't accept yet, and its destination.
+		 */
+		private ByteBuffer pending = null;
+		private InetSocketAddress pendingTo = null;
 
-				Message msg;
+		private void read() throws IOException {
+			for (int i = 0; i < MAX_READS_PER_WAKEUP; ++i) {
+				ByteBuffer buf = receivePool.acquire();
 				try {
-					msg = Message.parse(raw);
-				} catch (Exception e) {
-					System.err.println("Error while parsing message from "+addr+": "+raw);
-					e.printStackTrace();
-					continue;
+					InetSocketAddress from = (InetSocketAddress) channel.receive(buf);
+					if (from == null) {
+						return;
+					}
+					buf.flip();
+					deliver(codec, buf, from.getAddress());
+				} finally {
+					receivePool.release(buf);
 				}
+			}
+		}
 
-				Envelope e = new Envelope(addr, msg);
-				for (MessageHandler h : handlers) {
-					h.handleMessage(e);
+		/**
+		 * Sends as many queued messages as possible. Returns false if the
+		 * channel is full.
+		 */
+		private boolean write() throws IOException {
+			while (true) {
+				if (pending == null) {
+					ByteBuffer buf = sendPool.acquire();
+					InetAddress to;
+					try {
+						to = packer.pack(buf, false);
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e); // Cannot happen without blocking
+					}
+					if (to == null) {
+						sendPool.release(buf);
+						return true;
+					}
+					pending = buf;
+					pendingTo = new InetSocketAddress(to, port);
+				}
+
+				if (channel.send(pending, pendingTo) == 0) {
+					return false;
+				}
+				sendPool.release(pending);
+				pending = null;
+				pendingTo = null;
+			}
+		}
+
+		public void run() {
+			SelectionKey key;
+			try {
+				key = channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+
+			while (true) {
+				try {
+					selector.select();
+					selector.selectedKeys().clear();
+
+					if (key.isValid() && key.isReadable()) {
+						read();
+					}
+
+					int ops = SelectionKey.OP_READ;
+					if (!write()) {
+						ops |= SelectionKey.OP_WRITE;
+					}
+					key.interestOps(ops);
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
 				}
 			}
 		}
 	}
 
 	public void run() {
-		new Thread(new SenderWorker()).start();
+		if (channel != null) {
+			new EventLoop().run();
+			try {
+				selector.close();
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		senderExecutor.execute(new SenderWorker());
 		new ReceiverWorker().run();
 		socket.close();
 	}
 
-	public void broadcast(Message msg) {
-		outgoing.offer(new Envelope(brd, msg));
+	/**
+	 * Wakes up the event loop so that it picks up newly queued messages.
+	 */
+	private void wakeup() {
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Queues a message for broadcast. Returns false if it has been dropped.
+	 */
+	public boolean broadcast(Message msg) {
+		return send(new Envelope(brd, msg));
+	}
+
+	/**
+	 * Queues a message. Depending on the message priority class, this may block
+	 * until there's room in the outgoing queue. Returns false if the message
+	 * has been dropped.
+	 */
+	public boolean send(Envelope env) {
+		boolean queued = outgoing.offer(env);
+		if (queued) {
+			wakeup();
+		}
+		return queued;
 	}
 
-	public void send(Envelope env) {
-		outgoing.add(env);
+	/**
+	 * Returns a human-readable summary of the outgoing queue and reassembly
+	 * counters.
+	 */
+	public String stats() {
+		return outgoing.stats() + reassembler.stats();
 	}
 }
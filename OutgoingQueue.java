@@ -0,0 +1,207 @@
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of outgoing messages, split in priority classes.
+ *
+ * Each class has its own capacity and its own policy when it's full: either
+ * the message is dropped right away, or the producer blocks for a while
+ * until room is available. Consumers always drain higher priority classes
+ * first, so that HELLO and DYING messages are never stuck behind a LIST
+ * flood.
+ *
+ * Counters are kept for each class to find out where messages are lost.
+ */
+class OutgoingQueue {
+	/**
+	 * Priority classes, from highest to lowest priority.
+	 */
+	enum Priority {
+		/** HELLO, DYING and GOSSIP messages */
+		CONTROL,
+		/** SYN, TREE and NACK messages */
+		SYNC,
+		/** LIST messages */
+		BULK,
+	}
+
+	/**
+	 * What to do when a producer enqueues a message in a full class.
+	 */
+	enum Policy {
+		/** Drop the message */
+		DROP,
+		/** Wait for room, up to a deadline, then drop the message */
+		BLOCK,
+	}
+
+	private static final Duration maxBlock = Duration.ofSeconds(5);
+
+	private static final Priority[] priorities = Priority.values();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition[] notFull = new Condition[priorities.length];
+	private final ArrayDeque<Envelope>[] queues;
+	private final int capacity;
+	private final Policy[] policies = new Policy[priorities.length];
+	private int size = 0;
+
+	private final AtomicLongArray enqueued = new AtomicLongArray(priorities.length);
+	private final AtomicLongArray dropped = new AtomicLongArray(priorities.length);
+	private final AtomicLongArray blockedNanos = new AtomicLongArray(priorities.length);
+
+	/**
+	 * Creates a queue holding at most capacity messages in each class. Control
+	 * and SYN messages are periodically retried, so they are dropped when
+	 * their class is full; LIST producers block instead.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public OutgoingQueue(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid capacity: not positive");
+		}
+		this.capacity = capacity;
+		this.queues = new ArrayDeque[priorities.length];
+		for (int i = 0; i < priorities.length; ++i) {
+			queues[i] = new ArrayDeque<>(capacity);
+			notFull[i] = lock.newCondition();
+		}
+
+		policies[Priority.CONTROL.ordinal()] = Policy.DROP;
+		policies[Priority.SYNC.ordinal()] = Policy.DROP;
+		policies[Priority.BULK.ordinal()] = Policy.BLOCK;
+	}
+
+	/**
+	 * Returns the priority class of a message.
+	 */
+	public static Priority classify(Message msg) {
+		switch (msg.type()) {
+		case HELLO:
+		case DYING:
+		case GOSSIP:
+			return Priority.CONTROL;
+		case SYN:
+		case TREE:
+		case NACK:
+			return Priority.SYNC;
+		default:
+			return Priority.BULK;
+		}
+	}
+
+	public void setPolicy(Priority prio, Policy policy) {
+		policies[prio.ordinal()] = policy;
+	}
+
+	/**
+	 * Enqueues a message according to its class policy. Returns false if the
+	 * message has been dropped.
+	 */
+	public boolean offer(Envelope env) {
+		int i = classify(env.msg).ordinal();
+		ArrayDeque<Envelope> queue = queues[i];
+
+		lock.lock();
+		try {
+			if (queue.size() >= capacity) {
+				if (policies[i] == Policy.DROP) {
+					dropped.incrementAndGet(i);
+					return false;
+				}
+
+				long start = System.nanoTime();
+				long remaining = maxBlock.toNanos();
+				try {
+					while (queue.size() >= capacity && remaining > 0) {
+						remaining = notFull[i].awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					blockedNanos.addAndGet(i, System.nanoTime() - start);
+				}
+
+				if (queue.size() >= capacity) {
+					dropped.incrementAndGet(i);
+					return false;
+				}
+			}
+
+			queue.add(env);
+			++size;
+			enqueued.incrementAndGet(i);
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Dequeues the highest priority message. Must be called with the lock held.
+	 */
+	private Envelope dequeue() {
+		for (int i = 0; i < queues.length; ++i) {
+			Envelope env = queues[i].poll();
+			if (env != null) {
+				--size;
+				notFull[i].signal();
+				return env;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Dequeues the highest priority message, or returns null if the queue is
+	 * empty.
+	 */
+	public Envelope poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Dequeues the highest priority message, waiting if the queue is empty.
+	 */
+	public Envelope take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (size == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a human-readable summary of the queue counters.
+	 */
+	public String stats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-8s %8s %10s %10s %12s\n", "Class", "Queued", "Enqueued", "Dropped", "Blocked (ms)"));
+		lock.lock();
+		try {
+			for (int i = 0; i < priorities.length; ++i) {
+				sb.append(String.format("%-8s %8d %10d %10d %12d\n",
+					priorities[i], queues[i].size(), enqueued.get(i), dropped.get(i),
+					TimeUnit.NANOSECONDS.toMillis(blockedNanos.get(i))));
+			}
+		} finally {
+			lock.unlock();
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,110 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces messages with a token bucket: tokens accumulate at the current rate,
+ * up to a burst size, and each message sent takes one.
+ *
+ * The rate may adapt to loss, AIMD-style: it grows by a fixed step when no
+ * loss is reported, and is halved on loss. Either happens at most once per
+ * interval, so that a burst of reports counts once. A pacer with no step
+ * keeps a fixed rate. Pacers aren't thread-safe.
+ */
+class Pacer {
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final double minRate;
+	private final double maxRate;
+	private final double step;
+	private final int burst;
+
+	private double rate; // In messages per second
+	private double tokens;
+	private long refilledAt; // In System.nanoTime() time
+	private long changedAt;
+	private long decreasedAt;
+
+	/**
+	 * Creates a pacer with a fixed rate, in messages per second.
+	 */
+	public Pacer(double rate, int burst) {
+		this(rate, rate, rate, 0, burst);
+	}
+
+	/**
+	 * Creates a pacer starting at rate, adapting between minRate and maxRate
+	 * with the given additive step.
+	 */
+	public Pacer(double rate, double minRate, double maxRate, double step, int burst) {
+		if (minRate <= 0 || rate < minRate || rate > maxRate) {
+			throw new IllegalArgumentException("invalid rate: "+rate);
+		}
+		if (burst <= 0) {
+			throw new IllegalArgumentException("invalid burst: not positive");
+		}
+		this.rate = rate;
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.step = step;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilledAt = this.changedAt = System.nanoTime();
+		this.decreasedAt = refilledAt - INTERVAL;
+	}
+
+	private void refill(long now) {
+		if (now - refilledAt > 0) {
+			tokens = Math.min(burst, tokens + (now - refilledAt) * rate / SECOND);
+			refilledAt = now;
+		}
+	}
+
+	/**
+	 * Returns the time until a message can be sent, in nanoseconds.
+	 */
+	public long delay(long now) {
+		refill(now);
+		if (tokens >= 1) {
+			return 0;
+		}
+		return (long) Math.ceil((1 - tokens) * SECOND / rate);
+	}
+
+	/**
+	 * Takes the token of a message sent.
+	 */
+	public void take() {
+		--tokens;
+	}
+
+	/**
+	 * Records the lack of loss: adds the step to the rate.
+	 */
+	public void increase(long now) {
+		if (step <= 0 || now - changedAt < INTERVAL) {
+			return;
+		}
+		refill(now);
+		rate = Math.min(maxRate, rate + step);
+		changedAt = now;
+	}
+
+	/**
+	 * Records loss: halves the rate.
+	 */
+	public void decrease(long now) {
+		if (step <= 0 || now - decreasedAt < INTERVAL) {
+			return;
+		}
+		refill(now);
+		rate = Math.max(minRate, rate / 2);
+		changedAt = decreasedAt = now;
+	}
+
+	/**
+	 * Returns the current rate, in messages per second.
+	 */
+	public double rate() {
+		return rate;
+	}
+}
@@ -0,0 +1,167 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable list of sorted paths, stored with front coding: paths are
+ * grouped in blocks of BLOCK_SIZE, the first path of a block is stored in
+ * full and each of the others as the length of the prefix it shares with the
+ * previous one, followed by the rest. Since paths in a share repeat long
+ * directory prefixes, this takes a fraction of the memory of separate Strings.
+ *
+ * Paths are stored as UTF-8 in a single byte array, and decoded on access.
+ * Random access decodes up to a block; iterating decodes each path once.
+ */
+class PathList extends AbstractList<String> {
+	private static final int BLOCK_SIZE = 16;
+
+	private final byte[] data;
+	private final int[] blocks;
+	private final int size;
+	private final int maxLength;
+
+	/**
+	 * Creates a list of paths, which should be sorted for the front coding to
+	 * be effective.
+	 */
+	public PathList(List<String> paths) {
+		this.size = paths.size();
+		this.blocks = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+		byte[] buf = new byte[64];
+		int length = 0;
+		int max = 0;
+		byte[] prev = new byte[0];
+		int i = 0;
+		for (String path : paths) {
+			byte[] b = path.getBytes(StandardCharsets.UTF_8);
+			max = Math.max(max, b.length);
+			int prefix = 0;
+			if (i % BLOCK_SIZE == 0) {
+				blocks[i / BLOCK_SIZE] = length;
+			} else {
+				prefix = commonPrefix(prev, b);
+			}
+
+			int needed = length + 10 + b.length - prefix;
+			if (needed > buf.length) {
+				byte[] bigger = new byte[Math.max(needed, buf.length * 2)];
+				System.arraycopy(buf, 0, bigger, 0, length);
+				buf = bigger;
+			}
+			if (i % BLOCK_SIZE != 0) {
+				length = putVarint(buf, length, prefix);
+			}
+			length = putVarint(buf, length, b.length - prefix);
+			System.arraycopy(b, prefix, buf, length, b.length - prefix);
+			length += b.length - prefix;
+
+			prev = b;
+			++i;
+		}
+
+		this.data = new byte[length];
+		System.arraycopy(buf, 0, data, 0, length);
+		this.maxLength = max;
+	}
+
+	private static int commonPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i]) {
+			++i;
+		}
+		return i;
+	}
+
+	private static int putVarint(byte[] buf, int pos, int v) {
+		while ((v & ~0x7F) != 0) {
+			buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+		return pos;
+	}
+
+	/**
+	 * Decodes paths sequentially from the start of a block.
+	 */
+	private class Cursor implements Iterator<String> {
+		private final byte[] path = new byte[maxLength];
+		private int length = 0;
+		private int pos;
+		private int index;
+
+		public Cursor(int block) {
+			this.index = block * BLOCK_SIZE;
+			this.pos = index < size ? blocks[block] : data.length;
+		}
+
+		private int getVarint() {
+			int v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				v |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		/**
+		 * Decodes the next path into path, without building a String.
+		 */
+		public void skip() {
+			int prefix = index % BLOCK_SIZE == 0 ? 0 : getVarint();
+			int suffix = getVarint();
+			System.arraycopy(data, pos, path, prefix, suffix);
+			pos += suffix;
+			length = prefix + suffix;
+			++index;
+		}
+
+		public boolean hasNext() {
+			return index < size;
+		}
+
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			skip();
+			return new String(path, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	@Override
+	public String get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index "+index+" out of "+size);
+		}
+		Cursor c = new Cursor(index / BLOCK_SIZE);
+		for (int i = index % BLOCK_SIZE; i > 0; --i) {
+			c.skip();
+		}
+		return c.next();
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Cursor(0);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes used to store the paths.
+	 */
+	public int bytes() {
+		return data.length + 4 * blocks.length;
+	}
+}
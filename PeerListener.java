@@ -0,0 +1,8 @@
+/**
+ * A peer listener is notified when the peer table changes. It's called from
+ * the thread which changed the table, so it must not block: listeners queue
+ * events and handle them on their own thread.
+ */
+interface PeerListener {
+	public void peerChanged(PeerTable.Event event);
+}
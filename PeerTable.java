@@ -1,21 +1,33 @@
 import java.net.InetAddress;
-import java.util.Date;
-import java.time.Instant;
-import java.time.Duration;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A peer table holds information about all known peers.
  *
- * It notifies when a peer is added or removed and when a peer's state changes.
+ * It notifies listeners when a peer is added or expires, when its state
+ * changes and when its database is synchronized.
+ *
+ * The table is a concurrent map, and each record's fields are updated
+ * atomically, so that receivers handling messages from different peers don't
+ * contend. Expired peers are removed by run(), which waits on a queue of
+ * expiration times: a record is only looked at when its expiration time is
+ * reached, and put back in the queue if it has been heard from in the
+ * meantime. Expiration can be disabled when peers are removed by other means
+ * (see Membership).
  */
-class PeerTable {
-	private static final Duration expiration = Duration.ofSeconds(10);
-	private static final Duration minSynInterval = Duration.ofSeconds(1);
+class PeerTable implements Runnable {
+	private static final int defaultExpiration = 10;
+	private static final long minSynInterval = TimeUnit.SECONDS.toNanos(1);
 
 	enum State {HEARD, INCONSISTENT, SYNCHRONIZED, DYING}
 
@@ -23,21 +35,24 @@ class PeerTable {
 		public final String id;
 		public final InetAddress address;
 
-		protected int pendingSeqNum = Integer.MIN_VALUE;
-		protected Instant expiresAt = null;
-		protected Instant nextSynAt = null;
-		protected State state = State.HEARD;
-		protected Database db = null;
+		protected volatile int pendingSeqNum = Integer.MIN_VALUE;
+		protected volatile long expiresAt; // In System.nanoTime() time
+		protected final AtomicLong nextSynAt = new AtomicLong(System.nanoTime());
+		protected final AtomicReference<State> state = new AtomicReference<>(State.HEARD);
+		protected volatile Database db = null;
+		private final LinkQuality link = new LinkQuality();
 
-		protected Record(String id, InetAddress address) {
+		protected Record(String id, InetAddress address, long expiresAt) {
 			this.id = id;
 			this.address = address;
+			this.expiresAt = expiresAt;
 		}
 
 		/**
 		 * Returns the sequence number of this peer's synchronized database.
 		 */
-		public synchronized int seqNum() {
+		public int seqNum() {
+			Database db = this.db;
 			if (db == null) {
 				return Integer.MIN_VALUE;
 			}
@@ -47,19 +62,26 @@ class PeerTable {
 		/**
 		 * Returns the last received (maybe not yet synchronized) sequence number.
 		 */
-		public synchronized int pendingSeqNum() {
+		public int pendingSeqNum() {
 			return pendingSeqNum;
 		}
 
-		public synchronized State state() {
-			return state;
+		public State state() {
+			return state.get();
+		}
+
+		/**
+		 * Returns the estimated quality of the link to this peer.
+		 */
+		public LinkQuality link() {
+			return link;
 		}
 
 		/**
 		 * Returns the synchronized database of a peer. If the database hasn't been
 		 * synchronized yet, returns null.
 		 */
-		public synchronized Database database() {
+		public Database database() {
 			return db;
 		}
 
@@ -68,29 +90,141 @@ class PeerTable {
 		 * This method ensures that the peer is in a state needing synchronization
 		 * and that a synchronization request hasn't been sent for a while.
 		 */
-		public synchronized boolean requestSynchronize() {
-			if (state != State.HEARD && state != State.INCONSISTENT) {
+		public boolean requestSynchronize() {
+			State s = state.get();
+			if (s != State.HEARD && s != State.INCONSISTENT) {
 				return false;
 			}
-			Instant now = Instant.now();
-			if (nextSynAt != null && !now.isAfter(nextSynAt)) {
+			long now = System.nanoTime();
+			long next = nextSynAt.get();
+			if (now - next < 0) {
 				return false;
 			}
-			nextSynAt = now.plus(minSynInterval);
-			return true;
+			return nextSynAt.compareAndSet(next, now + minSynInterval);
+		}
+
+		/**
+		 * Delays the next synchronize request, while a reply is still being
+		 * received.
+		 */
+		public void deferSynchronize() {
+			deferSynchronize(minSynInterval);
+		}
+
+		/**
+		 * Delays the next synchronize request by at least delay nanoseconds.
+		 */
+		public void deferSynchronize(long delay) {
+			long next = System.nanoTime() + delay;
+			nextSynAt.updateAndGet(t -> t - next < 0 ? next : t);
+		}
+
+		/**
+		 * Moves to another state, unless the peer is dying. Returns true if the
+		 * state has changed.
+		 */
+		private boolean moveTo(State to) {
+			State prev = state.getAndUpdate(s -> s == State.DYING ? s : to);
+			return prev != State.DYING && prev != to;
+		}
+
+		private boolean expired(long now) {
+			return now - expiresAt > 0;
+		}
+	}
+
+	/**
+	 * A change in the peer table: a peer was added, its state changed, its
+	 * database was synchronized (its state may also have changed), or it
+	 * expired or was removed. state is the state of the peer right after the change.
+	 */
+	public static class Event {
+		enum Type {ADDED, STATE_CHANGED, SYNCHRONIZED, EXPIRED}
+
+		public final Type type;
+		public final Record record;
+		public final State state;
+
+		public Event(Type type, Record record, State state) {
+			this.type = type;
+			this.record = record;
+			this.state = state;
+		}
+
+		public String toString() {
+			return type+" "+record.id+" "+state;
+		}
+	}
+
+	/**
+	 * A record in the expiration queue, due at the time it was queued with.
+	 */
+	private static class Expiration implements Delayed {
+		public final Record rec;
+		public final long at;
+
+		public Expiration(Record rec) {
+			this.rec = rec;
+			this.at = rec.expiresAt;
 		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			return Long.signum(at - ((Expiration) o).at);
+		}
+	}
+
+	private final long expiration;
+	private Map<String, Record> records = new ConcurrentHashMap<>();
+	private DelayQueue<Expiration> expirations = new DelayQueue<>();
+	private volatile PeerListener[] listeners = new PeerListener[0];
+
+	public PeerTable() {
+		this(defaultExpiration);
+	}
+
+	/**
+	 * Creates a peer table whose peers expire if they aren't heard from for
+	 * expiration seconds. If expiration is 0, peers never expire and are only
+	 * removed with remove().
+	 */
+	public PeerTable(int expiration) {
+		this.expiration = TimeUnit.SECONDS.toNanos(expiration);
+	}
+
+	private boolean expired(Record rec, long now) {
+		return expiration > 0 && rec.expired(now);
+	}
+
+	/**
+	 * Registers a listener for changes in the peer table.
+	 */
+	public synchronized void addListener(PeerListener l) {
+		PeerListener[] listeners = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+		listeners[listeners.length - 1] = l;
+		this.listeners = listeners;
 	}
 
-	private Map<String, Record> records = new HashMap<>();
+	private void fire(Event.Type type, Record rec) {
+		Event e = new Event(type, rec, rec.state());
+		for (PeerListener l : listeners) {
+			l.peerChanged(e);
+		}
+	}
 
 	/**
 	 * Returns a read-only list of all peer records in the peer table.
 	 */
-	public synchronized List<Record> records() {
-		cleanup();
+	public List<Record> records() {
+		long now = System.nanoTime();
 		List<Record> list = new ArrayList<>();
 		for (Record rec : records.values()) {
-			list.add(rec);
+			if (!expired(rec, now)) {
+				list.add(rec);
+			}
 		}
 		return Collections.unmodifiableList(list);
 	}
@@ -99,44 +233,68 @@ class PeerTable {
 	 * Returns a single peer record from the peer table. Returns null if the peer
 	 * is unknown.
 	 */
-	public synchronized Record get(String id) {
+	public Record get(String id) {
 		return records.get(id);
 	}
 
+	/**
+	 * Adds a record, unless there's already one for the same peer. Returns the
+	 * record in the table.
+	 */
+	private Record add(Record rec) {
+		Record prev = records.putIfAbsent(rec.id, rec);
+		if (prev != null) {
+			return prev;
+		}
+		if (expiration > 0) {
+			expirations.offer(new Expiration(rec));
+		}
+		fire(Event.Type.ADDED, rec);
+		return rec;
+	}
+
 	/**
 	 * Updates a peer's sequence number in the peer table. This method fails with
 	 * an exception if the address is incorrect (meaning the sender is spoofing
 	 * someone else's peer ID).
 	 */
-	public synchronized void update(String id, InetAddress address, int seqNum) {
+	public void update(String id, InetAddress address, int seqNum) {
 		Record rec = records.get(id);
 		if (rec == null) {
-			rec = new Record(id, address);
-			records.put(id, rec);
-		} else {
-			if (!address.equals(rec.address)) {
-				throw new IllegalArgumentException("got two different IP addresses for the same peer ID");
-			}
+			Record fresh = new Record(id, address, System.nanoTime() + expiration);
+			fresh.pendingSeqNum = seqNum;
+			rec = add(fresh);
+		}
+		if (!address.equals(rec.address)) {
+			throw new IllegalArgumentException("got two different IP addresses for the same peer ID");
 		}
 
-		synchronized (rec) {
-			rec.expiresAt = Instant.now().plus(expiration);
-			rec.pendingSeqNum = seqNum;
+		rec.expiresAt = System.nanoTime() + expiration;
+		rec.pendingSeqNum = seqNum;
 
-			if (rec.seqNum() < seqNum && rec.state != State.DYING) {
-				rec.state = State.INCONSISTENT;
-			}
+		if (rec.seqNum() < seqNum && rec.moveTo(State.INCONSISTENT)) {
+			fire(Event.Type.STATE_CHANGED, rec);
 		}
+	}
 
-		cleanup();
-		this.notify();
+	/**
+	 * Restores a peer saved in a snapshot, with the database we had for it.
+	 * The peer is considered synchronized until it advertises a newer
+	 * database, and expires as usual if it isn't heard from.
+	 */
+	public void restore(String id, InetAddress address, Database db) {
+		Record rec = new Record(id, address, System.nanoTime() + expiration);
+		rec.db = db;
+		rec.pendingSeqNum = db.seqNum();
+		rec.state.set(State.SYNCHRONIZED);
+		add(rec);
 	}
 
 	/**
 	 * Marks a peer as dying. This method fails with an exception if the address
 	 * is incorrect.
 	 */
-	public synchronized void die(String id, InetAddress address) {
+	public void die(String id, InetAddress address) {
 		Record rec = records.get(id);
 		if (rec == null) {
 			return;
@@ -146,55 +304,96 @@ class PeerTable {
 			throw new IllegalArgumentException("got two different IP addresses for the same peer ID");
 		}
 
-		synchronized (rec) {
-			rec.state = State.DYING;
+		if (rec.state.getAndSet(State.DYING) != State.DYING) {
+			fire(Event.Type.STATE_CHANGED, rec);
 		}
-
-		cleanup();
-		this.notify();
 	}
 
 	/**
 	 * Synchronizes a peer's database.
 	 */
-	public synchronized void synchronize(String id, String[] data, int seqNum) {
+	public void synchronize(String id, Database.Entry[] entries, int seqNum) {
 		Record rec = records.get(id);
 		if (rec == null) {
 			throw new RuntimeException("attempt to synchronize a non-existing peer: "+id);
 		}
 
+		// Only serializes the database updates of a single peer
 		synchronized (rec) {
 			if (rec.db == null) {
-				rec.db = new Database(data, seqNum);
+				rec.db = new Database(entries, seqNum);
 			} else {
-				rec.db.update(data, seqNum);
-			}
-			if (rec.state != State.DYING) {
-				rec.state = State.SYNCHRONIZED;
+				rec.db.update(entries, seqNum);
 			}
 		}
-
-		cleanup();
-		this.notify();
+		rec.moveTo(State.SYNCHRONIZED);
+		fire(Event.Type.SYNCHRONIZED, rec);
 	}
 
 	/**
-	 * Prunes expired peers in the peer table. Notifies if the peer table has
-	 * changed.
+	 * Synchronizes a peer's database by applying changes to the version we
+	 * already have. Fails with an exception if we don't have the version the
+	 * changes start from.
 	 */
-	private synchronized void cleanup() {
-		ArrayList<String> toRemove = new ArrayList<>();
-		Instant now = Instant.now();
-		for (Record rec : records.values()) {
-			if (now.isAfter(rec.expiresAt)) {
-				toRemove.add(rec.id);
+	public void synchronize(String id, Database.Changes changes) {
+		Record rec = records.get(id);
+		if (rec == null) {
+			throw new RuntimeException("attempt to synchronize a non-existing peer: "+id);
+		}
+
+		synchronized (rec) {
+			if (rec.db == null) {
+				throw new RuntimeException("attempt to apply changes to a missing database");
 			}
+			rec.db.apply(changes);
 		}
-		for (String id : toRemove) {
-			records.remove(id);
+		rec.moveTo(State.SYNCHRONIZED);
+		fire(Event.Type.SYNCHRONIZED, rec);
+	}
+
+	/**
+	 * Removes a peer, e.g. found dead by the failure detector. Listeners see
+	 * it as expired.
+	 */
+	public void remove(String id) {
+		Record rec = records.remove(id);
+		if (rec != null) {
+			fire(Event.Type.EXPIRED, rec);
 		}
-		if (toRemove.size() > 0) {
-			this.notify();
+	}
+
+	/**
+	 * Prunes expired peers as their expiration time is reached.
+	 */
+	public void run() {
+		while (true) {
+			Expiration e;
+			try {
+				e = expirations.take();
+			} catch (InterruptedException ex) {
+				break;
+			}
+
+			Record rec = e.rec;
+			if (!expired(rec, System.nanoTime())) {
+				expirations.offer(new Expiration(rec)); // Heard from in the meantime
+				continue;
+			}
+
+			// Check again while removing it, update() may refresh it concurrently
+			boolean[] removed = { false };
+			Record left = records.computeIfPresent(rec.id, (id, r) -> {
+				if (r != rec || !expired(r, System.nanoTime())) {
+					return r;
+				}
+				removed[0] = true;
+				return null;
+			});
+			if (removed[0]) {
+				fire(Event.Type.EXPIRED, rec);
+			} else if (left == rec) {
+				expirations.offer(new Expiration(rec));
+			}
 		}
 	}
 }
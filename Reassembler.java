@@ -0,0 +1,215 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Splits large datagrams into fragments and reassembles them on receive.
+ *
+ * A fragment starts with a magic byte, which cannot start any other kind of
+ * datagram, followed by a 4-byte message ID chosen by the sender, a 2-byte
+ * fragment index, a 2-byte fragment count and the fragment payload.
+ *
+ * Incomplete messages are kept in a cache bounded both in number of entries
+ * and in bytes. Messages not completed before a timeout are dropped, and when
+ * the cache is full the oldest message is evicted.
+ */
+class Reassembler {
+	static final byte MAGIC = (byte) 0xDE;
+	static final int HEADER_SIZE = 9;
+
+	static final int MAX_FRAGMENTS = 1024;
+
+	private final int maxEntries;
+	private final int maxBytes;
+	private final Duration timeout;
+
+	private final LinkedHashMap<Key, Partial> partials = new LinkedHashMap<>();
+	private int bytes = 0;
+
+	private long completed = 0;
+	private long expired = 0;
+	private long evicted = 0;
+
+	private static class Key {
+		public final InetAddress address;
+		public final int id;
+
+		public Key(InetAddress address, int id) {
+			this.address = address;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return id == other.id && address.equals(other.address);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(address, id);
+		}
+	}
+
+	/**
+	 * A message being reassembled.
+	 */
+	private static class Partial {
+		public final long deadline;
+		public final byte[][] fragments;
+
+		public int received = 0;
+		public int size = 0;
+
+		public Partial(int count, long deadline) {
+			this.fragments = new byte[count][];
+			this.deadline = deadline;
+		}
+	}
+
+	public Reassembler(int maxEntries, int maxBytes, Duration timeout) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.timeout = timeout;
+	}
+
+	static boolean isFragment(ByteBuffer buf) {
+		return buf.hasRemaining() && buf.get(buf.position()) == MAGIC;
+	}
+
+	/**
+	 * Returns the number of fragments needed to send a datagram of the given
+	 * size, each fragment being at most maxDatagramSize bytes long.
+	 */
+	static int fragmentCount(int size, int maxDatagramSize) {
+		int payload = maxDatagramSize - HEADER_SIZE;
+		return (size + payload - 1) / payload;
+	}
+
+	/**
+	 * Writes fragment index of the datagram in whole into out, which is then
+	 * flipped and ready to be sent. The position and limit of whole are not
+	 * modified.
+	 */
+	static void fragment(ByteBuffer whole, int id, int index, int count, int maxDatagramSize, ByteBuffer out) {
+		if (count > MAX_FRAGMENTS) {
+			throw new IllegalArgumentException("too many fragments");
+		}
+
+		int payload = maxDatagramSize - HEADER_SIZE;
+		int start = whole.position() + index * payload;
+		int end = Math.min(start + payload, whole.limit());
+
+		ByteBuffer chunk = whole.duplicate();
+		chunk.limit(end).position(start);
+
+		out.clear();
+		out.put(MAGIC);
+		out.putInt(id);
+		out.putShort((short) index);
+		out.putShort((short) count);
+		out.put(chunk);
+		out.flip();
+	}
+
+	/**
+	 * Drops incomplete messages which timed out.
+	 */
+	private void expire(long now) {
+		Iterator<Partial> it = partials.values().iterator();
+		while (it.hasNext()) {
+			Partial p = it.next();
+			// Entries are roughly sorted by deadline, since the timeout is fixed
+			if (p.deadline > now) {
+				break;
+			}
+			bytes -= p.size;
+			it.remove();
+			++expired;
+		}
+	}
+
+	private void evictOldest() {
+		Iterator<Partial> it = partials.values().iterator();
+		bytes -= it.next().size;
+		it.remove();
+		++evicted;
+	}
+
+	/**
+	 * Handles a received fragment. Returns the reassembled datagram if this was
+	 * the last missing fragment, null otherwise.
+	 */
+	public synchronized ByteBuffer receive(InetAddress from, ByteBuffer buf) {
+		if (buf.remaining() < HEADER_SIZE) {
+			throw new IllegalArgumentException("truncated fragment header");
+		}
+
+		ByteBuffer frag = buf.duplicate();
+		frag.get(); // Magic
+		int id = frag.getInt();
+		int index = frag.getShort() & 0xFFFF;
+		int count = frag.getShort() & 0xFFFF;
+		if (count == 0 || count > MAX_FRAGMENTS || index >= count) {
+			throw new IllegalArgumentException("invalid fragment index");
+		}
+		int len = frag.remaining();
+		if (len > maxBytes) {
+			throw new IllegalArgumentException("fragment too large");
+		}
+
+		long now = System.nanoTime();
+		expire(now);
+
+		Key key = new Key(from, id);
+		Partial p = partials.get(key);
+		if (p == null) {
+			p = new Partial(count, now + timeout.toNanos());
+			partials.put(key, p);
+		} else if (p.fragments.length != count) {
+			throw new IllegalArgumentException("fragment count mismatch");
+		}
+		if (p.fragments[index] != null) {
+			return null; // Duplicate
+		}
+
+		byte[] data = new byte[len];
+		frag.get(data);
+		p.fragments[index] = data;
+		p.size += len;
+		++p.received;
+		bytes += len;
+
+		if (p.received == count) {
+			partials.remove(key);
+			bytes -= p.size;
+			++completed;
+
+			ByteBuffer whole = ByteBuffer.allocate(p.size);
+			for (byte[] f : p.fragments) {
+				whole.put(f);
+			}
+			whole.flip();
+			return whole;
+		}
+
+		while (!partials.isEmpty() && (partials.size() > maxEntries || bytes > maxBytes)) {
+			evictOldest();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a human-readable summary of the reassembly counters.
+	 */
+	public synchronized String stats() {
+		return "Reassembly: "+partials.size()+" pending ("+bytes+" bytes), "+
+			completed+" completed, "+expired+" expired, "+evicted+" evicted\n";
+	}
+}
@@ -0,0 +1,328 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reconciles peer databases with summary trees (see Database).
+ *
+ * When a peer can't send us the changes since the version of its database we
+ * have, it replies to our SYN with the hashes of the children of its summary
+ * tree root. We compare them with our copy, request the children of
+ * mismatching nodes, and finally the entries of mismatching buckets, a few
+ * buckets at a time so that replies don't come in bursts larger than the
+ * receive buffers. Once all of them have been received, they replace our
+ * copy's buckets. Buckets empty on the peer side are just cleared.
+ *
+ * Replies making progress delay our next SYN to the peer. If some are lost,
+ * the next SYN brings the root's hashes again, and we ask again for what's
+ * still missing; only a newer version of the peer's database starts over.
+ *
+ * This also answers TREE requests from other peers about the local database.
+ */
+class Reconciler implements MessageHandler, Runnable {
+	private static final int MAX_PENDING_BUCKETS = 16;
+	// Buckets hold about 16 entries, anything much larger is bogus
+	private static final int MAX_BUCKET_ENTRIES = 4096;
+
+	private MuxDemux muxDemux;
+	private PeerTable peerTable;
+	private Database db;
+	private String local;
+
+	private BlockingQueue<Envelope> incoming = new ArrayBlockingQueue<>(256);
+	private Map<String, Session> sessions = new HashMap<>();
+
+	/**
+	 * An in-progress reconciliation with a peer, from the version base of its
+	 * database we have to the version seqNum, whose summary tree has the given
+	 * depth.
+	 */
+	private static class Session {
+		public final String peer;
+		public final int seqNum;
+		public final int base;
+		public final int depth;
+
+		public final Set<Integer> pendingNodes = new HashSet<>();
+		public final Map<Integer, Long> bucketHashes = new HashMap<>();
+		public final Map<Integer, Database.Entry[]> buckets = new HashMap<>();
+		public final Map<Integer, Partial> pendingBuckets = new HashMap<>();
+		public final Deque<Integer> queuedBuckets = new ArrayDeque<>();
+
+		public Session(String peer, int seqNum, int base, int depth) {
+			this.peer = peer;
+			this.seqNum = seqNum;
+			this.base = base;
+			this.depth = depth;
+		}
+
+		public boolean done() {
+			return pendingNodes.isEmpty() && pendingBuckets.isEmpty() && queuedBuckets.isEmpty();
+		}
+	}
+
+	/**
+	 * The entries of a bucket received so far, by part number.
+	 */
+	private static class Partial {
+		public int total = 0;
+		public final Map<Integer, Database.Entry> parts = new HashMap<>();
+	}
+
+	public Reconciler(MuxDemux muxDemux, PeerTable peerTable, Database db, String local) {
+		this.muxDemux = muxDemux;
+		this.peerTable = peerTable;
+		this.db = db;
+		this.local = local;
+	}
+
+	public void handleMessage(Envelope env) {
+		// Full and delta LIST messages are handled by the ListReceiver
+		if (env.msg instanceof Message.List && ((Message.List)env.msg).op != Message.List.BUCKET) {
+			return;
+		}
+		incoming.offer(env);
+	}
+
+	private void send(Envelope req, Message msg) {
+		muxDemux.send(new Envelope(req.address, msg));
+	}
+
+	/**
+	 * Answers a TREE request about the local database.
+	 */
+	private void answer(Envelope env, Message.Tree tree) {
+		int bucket = tree.bucket();
+		if (bucket < 0) {
+			long[] hashes = db.summary(tree.node, tree.depth, tree.seqNum);
+			if (hashes != null) {
+				send(env, new Message.Tree(local, tree.sender, tree.seqNum, tree.depth, tree.node, hashes));
+			}
+			return;
+		}
+
+		List<Database.Entry> entries = db.bucket(bucket, tree.depth, tree.seqNum);
+		if (entries == null) {
+			return; // The database has changed, the peer will start over
+		}
+		for (int i = 0; i < entries.size(); ++i) {
+			send(env, new Message.List(local, tree.sender, tree.seqNum, entries.size(), i, entries.get(i), bucket, Message.List.BUCKET));
+		}
+	}
+
+	/**
+	 * Handles the hashes of a node of a peer's summary tree.
+	 */
+	private void receive(Envelope env, Message.Tree tree) {
+		PeerTable.Record rec = peerTable.get(tree.sender);
+		if (rec == null || rec.state() == PeerTable.State.DYING || !env.address.equals(rec.address)) {
+			return;
+		}
+		if (tree.node == 0) {
+			rec.link().synAnswered(); // Replies to our SYN instead of LIST messages
+		}
+		Database peerDb = rec.database();
+		if (peerDb == null || tree.seqNum <= peerDb.seqNum()) {
+			return; // Nothing to reconcile with, or already up to date
+		}
+
+		Session s = sessions.get(tree.sender);
+		boolean same = s != null && s.seqNum == tree.seqNum && s.depth == tree.depth && s.base == peerDb.seqNum();
+		if (tree.node == 0) {
+			if (same) {
+				// The peer got another SYN because replies were lost: ask again
+				// for what's missing
+				rec.deferSynchronize();
+				resend(env, s);
+				return;
+			}
+			if (s != null && s.seqNum > tree.seqNum && s.base == peerDb.seqNum()) {
+				return; // Late reply to an older SYN
+			}
+			s = new Session(tree.sender, tree.seqNum, peerDb.seqNum(), tree.depth);
+			sessions.put(tree.sender, s);
+		} else if (!same || !s.pendingNodes.remove(tree.node)) {
+			return;
+		}
+		rec.deferSynchronize();
+
+		long[] ours = peerDb.summary(tree.node, s.depth, s.base);
+		if (ours == null) {
+			sessions.remove(tree.sender); // Our copy has changed in the meantime
+			return;
+		}
+
+		int first = Database.firstNode(s.depth);
+		for (int i = 0; i < Database.FANOUT; ++i) {
+			if (ours[i] == tree.hash(i)) {
+				continue;
+			}
+
+			int child = tree.node * Database.FANOUT + 1 + i;
+			if (child < first) {
+				s.pendingNodes.add(child);
+				send(env, new Message.Tree(local, tree.sender, s.seqNum, s.depth, child));
+				continue;
+			}
+
+			int bucket = child - first;
+			s.bucketHashes.put(bucket, tree.hash(i));
+			if (tree.hash(i) == 0) {
+				s.buckets.put(bucket, new Database.Entry[0]); // Empty on the peer side
+			} else {
+				s.queuedBuckets.add(bucket);
+			}
+		}
+
+		request(env, s);
+		finish(s);
+	}
+
+	/**
+	 * Requests again the nodes and buckets whose replies are still expected.
+	 */
+	private void resend(Envelope env, Session s) {
+		for (int node : s.pendingNodes) {
+			send(env, new Message.Tree(local, s.peer, s.seqNum, s.depth, node));
+		}
+		for (int bucket : s.pendingBuckets.keySet()) {
+			send(env, new Message.Tree(local, s.peer, s.seqNum, s.depth, Database.firstNode(s.depth) + bucket));
+		}
+	}
+
+	/**
+	 * Requests queued buckets, up to MAX_PENDING_BUCKETS at a time.
+	 */
+	private void request(Envelope env, Session s) {
+		while (s.pendingBuckets.size() < MAX_PENDING_BUCKETS && !s.queuedBuckets.isEmpty()) {
+			int bucket = s.queuedBuckets.removeFirst();
+			s.pendingBuckets.put(bucket, new Partial());
+			send(env, new Message.Tree(local, s.peer, s.seqNum, s.depth, Database.firstNode(s.depth) + bucket));
+		}
+	}
+
+	/**
+	 * Handles an entry of a bucket requested from a peer.
+	 */
+	private void receive(Envelope env, Message.List list) {
+		Session s = sessions.get(list.sender);
+		int bucket = list.baseSeqNum;
+		Partial partial = s == null || s.seqNum != list.seqNum ? null : s.pendingBuckets.get(bucket);
+		if (partial == null) {
+			return;
+		}
+
+		if (list.totalParts > MAX_BUCKET_ENTRIES || (partial.total != 0 && partial.total != list.totalParts)) {
+			System.err.println("Bucket "+bucket+" from "+s.peer+" has an invalid size, giving up reconciliation");
+			sessions.remove(s.peer);
+			return;
+		}
+		partial.total = list.totalParts;
+		partial.parts.put(list.partNum, list.entry());
+		PeerTable.Record rec = peerTable.get(s.peer);
+		if (rec != null) {
+			rec.deferSynchronize();
+		}
+		if (partial.parts.size() < partial.total) {
+			return;
+		}
+
+		Database.Entry[] entries = new Database.Entry[partial.total];
+		for (int i = 0; i < entries.length; ++i) {
+			entries[i] = partial.parts.get(i);
+		}
+		s.buckets.put(bucket, entries);
+		s.pendingBuckets.remove(bucket);
+		request(env, s);
+		finish(s);
+	}
+
+	/**
+	 * Applies the received buckets to our copy of the peer's database once
+	 * they are all there.
+	 */
+	private void finish(Session s) {
+		if (!s.done()) {
+			return;
+		}
+		sessions.remove(s.peer);
+
+		PeerTable.Record rec = peerTable.get(s.peer);
+		if (rec == null) {
+			return;
+		}
+		Database.Version peerDb = rec.database().version();
+		if (peerDb.seqNum != s.base) {
+			return; // Our copy has changed in the meantime
+		}
+
+		List<Database.Entry> updated = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		for (Map.Entry<Integer, Database.Entry[]> b : s.buckets.entrySet()) {
+			List<Database.Entry> ours = peerDb.bucket(b.getKey(), s.depth);
+			Map<String, Database.Entry> remaining = new HashMap<>();
+			for (Database.Entry e : ours) {
+				remaining.put(e.path, e);
+			}
+
+			long hash = 0;
+			for (Database.Entry e : b.getValue()) {
+				if (e.bucket(s.depth) != b.getKey()) {
+					System.err.println("Received an entry in the wrong bucket from "+s.peer);
+					return;
+				}
+				hash ^= e.hash();
+				if (!e.equals(remaining.remove(e.path))) {
+					updated.add(e);
+				}
+			}
+			if (hash != s.bucketHashes.get(b.getKey())) {
+				System.err.println("Bucket "+b.getKey()+" from "+s.peer+" doesn't match its hash");
+				return;
+			}
+			removed.addAll(remaining.keySet());
+		}
+
+		try {
+			peerTable.synchronize(s.peer, new Database.Changes(s.base, s.seqNum, updated, removed));
+		} catch (Exception e) {
+			System.out.println("Cannot synchronize peer "+s.peer);
+			e.printStackTrace();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Envelope env;
+			try {
+				env = incoming.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (env.msg instanceof Message.Tree) {
+				Message.Tree tree = (Message.Tree)env.msg;
+				if (!local.equals(tree.peer)) {
+					continue; // Not for me
+				}
+				if (tree.request()) {
+					answer(env, tree);
+				} else {
+					receive(env, tree);
+				}
+			} else {
+				Message.List list = (Message.List)env.msg;
+				if (local.equals(list.peer)) {
+					receive(env, list);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the node's state to disk, so that a restarted node resumes where it
+ * left off instead of resynchronizing with every peer: the local database and
+ * its sequence number, the databases of known peers, and the download
+ * scheduler state.
+ *
+ * The snapshot is written periodically (only if something has changed) and on
+ * shutdown, to a temporary file which then atomically replaces the previous
+ * one. It's a stream of big-endian fields, read back in a single pass.
+ */
+class Snapshot implements Runnable {
+	private static final int MAGIC = 0x44465453; // "DFTS"
+	private static final int VERSION = 1;
+
+	private static final byte NO_SCHEDULE = 0;
+	private static final byte SAME_AS_DATABASE = 1;
+	private static final byte EXPLICIT_SCHEDULE = 2;
+
+	private Path file;
+	private Database db;
+	private PeerTable peerTable;
+	private DownloadScheduler downloadScheduler;
+	private int interval;
+
+	private long savedVersion = 0;
+
+	/**
+	 * A peer, as read from a snapshot.
+	 */
+	public static class Peer {
+		public final String id;
+		public final InetAddress address;
+		public final Database db;
+		public final Integer processed;
+		public final Collection<Database.Entry> scheduled;
+
+		public Peer(String id, InetAddress address, Database db, Integer processed, Collection<Database.Entry> scheduled) {
+			this.id = id;
+			this.address = address;
+			this.db = db;
+			this.processed = processed;
+			this.scheduled = scheduled;
+		}
+	}
+
+	/**
+	 * The contents of a snapshot.
+	 */
+	public static class Contents {
+		public final Database local;
+		public final List<Peer> peers;
+
+		public Contents(Database local, List<Peer> peers) {
+			this.local = local;
+			this.peers = peers;
+		}
+
+		/**
+		 * Restores peers in the peer table and in the download scheduler.
+		 */
+		public void restore(PeerTable peerTable, DownloadScheduler downloadScheduler) {
+			for (Peer p : peers) {
+				peerTable.restore(p.id, p.address, p.db);
+				if (p.processed != null) {
+					downloadScheduler.restore(p.id, p.processed, p.scheduled);
+				}
+			}
+		}
+	}
+
+	public Snapshot(Path file, Database db, PeerTable peerTable, DownloadScheduler downloadScheduler, int interval) {
+		this.file = file;
+		this.db = db;
+		this.peerTable = peerTable;
+		this.downloadScheduler = downloadScheduler;
+		this.interval = interval;
+	}
+
+	/**
+	 * Loads a snapshot. Returns null if there's none or if it can't be read.
+	 */
+	public static Contents load(Path file) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.err.println("Ignoring snapshot "+file+": unknown format");
+				return null;
+			}
+
+			Database local = readDatabase(in);
+			int n = in.readInt();
+			List<Peer> peers = new ArrayList<>(n);
+			for (int i = 0; i < n; ++i) {
+				String id = in.readUTF();
+				byte[] addr = new byte[in.readUnsignedByte()];
+				in.readFully(addr);
+				Database peerDb = readDatabase(in);
+
+				Integer processed = null;
+				Collection<Database.Entry> scheduled = null;
+				byte schedule = in.readByte();
+				if (schedule == SAME_AS_DATABASE) {
+					processed = peerDb.seqNum();
+					scheduled = peerDb.entries();
+				} else if (schedule == EXPLICIT_SCHEDULE) {
+					processed = in.readInt();
+					scheduled = readEntries(in);
+				}
+
+				peers.add(new Peer(id, InetAddress.getByAddress(addr), peerDb, processed, scheduled));
+			}
+			return new Contents(local, peers);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("Cannot load snapshot "+file+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	private static List<Database.Entry> readEntries(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<Database.Entry> entries = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i) {
+			String path = in.readUTF();
+			long size = in.readLong();
+			long mtime = in.readLong();
+			if (in.readBoolean()) {
+				entries.add(new Database.Entry(path, size, mtime, in.readUTF()));
+			} else {
+				entries.add(new Database.Entry(path));
+			}
+		}
+		return entries;
+	}
+
+	private static Database readDatabase(DataInputStream in) throws IOException {
+		int seqNum = in.readInt();
+		List<Database.Entry> entries = readEntries(in);
+		return new Database(entries.toArray(new Database.Entry[entries.size()]), seqNum);
+	}
+
+	private static void writeEntries(DataOutputStream out, Collection<Database.Entry> entries) throws IOException {
+		out.writeInt(entries.size());
+		for (Database.Entry e : entries) {
+			out.writeUTF(e.path);
+			out.writeLong(e.size);
+			out.writeLong(e.mtime);
+			out.writeBoolean(e.hasMetadata());
+			if (e.hasMetadata()) {
+				out.writeUTF(e.digest);
+			}
+		}
+	}
+
+	private static void writeDatabase(DataOutputStream out, Database.Version version) throws IOException {
+		out.writeInt(version.seqNum);
+		writeEntries(out, version.entries());
+	}
+
+	/**
+	 * Returns a value which changes whenever the state to save changes.
+	 */
+	private long version(List<PeerTable.Record> records, Map<String, Integer> processed) {
+		long v = db.seqNum();
+		for (PeerTable.Record rec : records) {
+			v = 31 * v + rec.id.hashCode();
+			v = 31 * v + rec.seqNum();
+		}
+		v = 31 * v + downloadScheduler.completed();
+		return 31 * v + processed.hashCode();
+	}
+
+	/**
+	 * Writes the snapshot if the state has changed since the last one.
+	 */
+	public synchronized void save() {
+		List<PeerTable.Record> records = new ArrayList<>();
+		for (PeerTable.Record rec : peerTable.records()) {
+			if (rec.database() != null && rec.state() != PeerTable.State.DYING) {
+				records.add(rec);
+			}
+		}
+		Map<String, Integer> processed = downloadScheduler.processed();
+
+		long version = version(records, processed);
+		if (version == savedVersion) {
+			return;
+		}
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeDatabase(out, db.version());
+
+				out.writeInt(records.size());
+				for (PeerTable.Record rec : records) {
+					Database.Version peerDb = rec.database().version();
+					out.writeUTF(rec.id);
+					byte[] addr = rec.address.getAddress();
+					out.writeByte(addr.length);
+					out.write(addr);
+					writeDatabase(out, peerDb);
+
+					Integer seqNum = processed.get(rec.id);
+					Collection<Database.Entry> scheduled = downloadScheduler.scheduled(rec.id);
+					if (seqNum == null || scheduled == null) {
+						out.writeByte(NO_SCHEDULE);
+					} else if (seqNum == peerDb.seqNum && scheduled.size() == peerDb.entries().size()) {
+						// All downloads completed
+						out.writeByte(SAME_AS_DATABASE);
+					} else {
+						out.writeByte(EXPLICIT_SCHEDULE);
+						out.writeInt(seqNum);
+						writeEntries(out, scheduled);
+					}
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			savedVersion = version;
+		} catch (IOException e) {
+			System.err.println("Cannot save snapshot "+file+": "+e.getMessage());
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval * 1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			save();
+		}
+	}
+}
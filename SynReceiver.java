@@ -20,10 +20,6 @@ class SynReceiver implements MessageHandler, Runnable {
 	}
 
 	public void handleMessage(Envelope env) {
-		if (!(env.msg instanceof Message.Syn)) {
-			return;
-		}
-
 		incoming.offer(env);
 	}
 
@@ -48,7 +44,7 @@ class SynReceiver implements MessageHandler, Runnable {
 				continue;
 			}
 
-			listSender.sendTo(env.address, syn.sender);
+			listSender.sendTo(env.address, syn.sender, syn.baseSeqNum);
 		}
 	}
 }
@@ -1,12 +1,22 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 /**
- * Periodically sends synchronization requests to unsynchronized peers.
+ * Sends synchronization requests to unsynchronized peers: as soon as the peer
+ * table reports that a peer needs it, and periodically to retry requests
+ * which weren't answered.
  */
-class SynSender implements Runnable {
+class SynSender implements PeerListener, Runnable {
 	private MuxDemux muxDemux;
 	private PeerTable peerTable;
 	private String local;
 	private int synInterval;
 
+	private BlockingQueue<PeerTable.Record> pending = new ArrayBlockingQueue<>(256);
+	private volatile Executor executor = null;
+
 	public SynSender(MuxDemux muxDemux, PeerTable peerTable, String local, int synInterval) {
 		this.muxDemux = muxDemux;
 		this.peerTable = peerTable;
@@ -14,22 +24,74 @@ class SynSender implements Runnable {
 		this.synInterval = synInterval;
 	}
 
+	public void peerChanged(PeerTable.Event event) {
+		if (event.state == PeerTable.State.HEARD || event.state == PeerTable.State.INCONSISTENT) {
+			pending.offer(event.record);
+			Executor executor = this.executor;
+			if (executor != null) {
+				executor.execute(this::drain);
+			}
+		}
+	}
+
+	/**
+	 * Handles peer events on executor as they arrive, instead of in run().
+	 * tick() must then be called every synInterval seconds.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sends SYN messages to the peers reported so far.
+	 */
+	public void drain() {
+		PeerTable.Record rec;
+		while ((rec = pending.poll()) != null) {
+			synchronize(rec);
+		}
+	}
+
+	/**
+	 * Sends a SYN message to a peer if it needs synchronization.
+	 */
+	private void synchronize(PeerTable.Record rec) {
+		if (rec.requestSynchronize()) {
+			// Only ask for changes if we already have a version of the database
+			int base = rec.database() != null ? rec.seqNum() : Message.Syn.NO_BASE;
+			Message.Syn syn = new Message.Syn(local, rec.id, rec.pendingSeqNum(), base);
+			Envelope env = new Envelope(rec.address, syn);
+			rec.link().synSent();
+			muxDemux.send(env);
+		}
+	}
+
+	/**
+	 * Sends SYN messages to all peers needing synchronization.
+	 */
+	public void tick() {
+		for (PeerTable.Record rec : peerTable.records()) {
+			synchronize(rec);
+		}
+	}
+
 	public void run() {
+		long interval = TimeUnit.SECONDS.toNanos(synInterval);
+		long nextTick = System.nanoTime() + interval;
 		while (true) {
+			PeerTable.Record rec;
 			try {
-				synchronized (peerTable) {
-					peerTable.wait(synInterval * 1000);
-				}
+				rec = pending.poll(Math.max(0, nextTick - System.nanoTime()), TimeUnit.NANOSECONDS);
 			} catch (InterruptedException e) {
 				break;
 			}
 
-			for (PeerTable.Record rec : peerTable.records()) {
-				if (rec.requestSynchronize()) {
-					Message.Syn syn = new Message.Syn(local, rec.id, rec.pendingSeqNum());
-					Envelope env = new Envelope(rec.address, syn);
-					muxDemux.send(env);
-				}
+			if (rec != null) {
+				synchronize(rec);
+			}
+			if (System.nanoTime() - nextTick >= 0) {
+				tick();
+				nextTick = System.nanoTime() + interval;
 			}
 		}
 	}
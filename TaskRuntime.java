@@ -0,0 +1,134 @@
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared runtime for the node's tasks, instead of one platform thread per
+ * component.
+ *
+ * Periodic tasks, and the short event handlers of components driven by a
+ * tick, run on a small scheduled thread pool. Blocking I/O tasks run on
+ * virtual threads when the JVM supports them (Java 21 and later), so that the
+ * number of platform threads doesn't grow with the number of connections and
+ * downloads. Older JVMs, Java 17 included, fall back to a cached thread pool:
+ * each blocking task then still owns a platform thread.
+ */
+class TaskRuntime {
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService blocking;
+	private final ThreadFactory threads;
+	private final boolean virtual;
+
+	public TaskRuntime(int schedulerThreads) {
+		this.scheduler = Executors.newScheduledThreadPool(schedulerThreads);
+
+		ExecutorService blocking;
+		ThreadFactory threads;
+		boolean virtual;
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			blocking = (ExecutorService) m.invoke(null);
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			m = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			threads = (ThreadFactory) m.invoke(builder);
+			virtual = true;
+		} catch (ReflectiveOperationException e) {
+			blocking = Executors.newCachedThreadPool();
+			threads = Executors.defaultThreadFactory();
+			virtual = false;
+		}
+		this.blocking = blocking;
+		this.threads = threads;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Checks whether blocking tasks run on virtual threads.
+	 */
+	public boolean virtual() {
+		return virtual;
+	}
+
+	/**
+	 * Runs a task every interval seconds. Exceptions are printed and don't
+	 * cancel later runs.
+	 */
+	public void schedule(Runnable task, int interval) {
+		schedule(task, Duration.ofSeconds(interval));
+	}
+
+	/**
+	 * Runs a task every interval. Exceptions are printed and don't cancel
+	 * later runs.
+	 */
+	public void schedule(Runnable task, Duration interval) {
+		long millis = Math.max(1, interval.toMillis());
+		scheduler.scheduleWithFixedDelay(guard(task), millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns an executor running short, non-blocking tasks on the scheduler,
+	 * e.g. handling events as they arrive. Exceptions are printed, and tasks
+	 * submitted after shutdown are dropped.
+	 */
+	public Executor scheduledExecutor() {
+		return (task) -> {
+			try {
+				scheduler.execute(guard(task));
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+			}
+		};
+	}
+
+	private static Runnable guard(Runnable task) {
+		return () -> {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		};
+	}
+
+	/**
+	 * Runs a task which may block on I/O.
+	 */
+	public void execute(Runnable task) {
+		blocking.execute(task);
+	}
+
+	public ExecutorService blockingExecutor() {
+		return blocking;
+	}
+
+	/**
+	 * Returns an executor starting each task on a new thread, virtual if
+	 * supported, which shutdown() doesn't stop. This is for tasks which must
+	 * outlive the others, such as sending the last messages.
+	 */
+	public Executor detachedExecutor() {
+		return (task) -> threads.newThread(task).start();
+	}
+
+	/**
+	 * Stops periodic tasks, then interrupts blocking tasks. Waits at most
+	 * timeout for each of them to terminate.
+	 */
+	public void shutdown(Duration timeout) {
+		scheduler.shutdownNow();
+		blocking.shutdownNow();
+		try {
+			scheduler.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+			blocking.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}